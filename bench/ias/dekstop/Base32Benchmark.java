@@ -0,0 +1,65 @@
+package ias.dekstop;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base32 decode/encode cost for typical and long secret lengths.
+ * Run with {@code ant bench}; see build.xml.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Base32Benchmark {
+
+    /** Secret length in Base32 characters. */
+    @Param({"16", "20", "32", "64", "128"})
+    public int length;
+
+    private String secret;
+    private String grouped;
+    private byte[] raw;
+    private byte[] decodeBuffer;
+    private char[] encodeBuffer;
+
+    @Setup
+    public void setup() {
+        raw = new byte[length * 5 / 8];
+        new Random(42).nextBytes(raw);
+        secret = Base32.encode(raw);
+        // how users paste secrets shown in groups of four
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < secret.length(); i += 4) {
+            if (i > 0) sb.append(' ');
+            sb.append(secret.substring(i, Math.min(secret.length(), i + 4)).toLowerCase());
+        }
+        grouped = sb.toString();
+        decodeBuffer = new byte[raw.length];
+        encodeBuffer = new char[Base32.encodedLength(raw.length)];
+    }
+
+    @Benchmark
+    public byte[] decodeBase32() {
+        return TOTP.decodeBase32(secret);
+    }
+
+    @Benchmark
+    public byte[] decodeGrouped() {
+        return TOTP.decodeBase32(grouped);
+    }
+
+    @Benchmark
+    public int decodeInto() {
+        return Base32.decode(secret, decodeBuffer, 0);
+    }
+
+    @Benchmark
+    public int encodeInto() {
+        return Base32.encode(raw, 0, raw.length, encodeBuffer, 0);
+    }
+}
@@ -0,0 +1,86 @@
+package ias.dekstop;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plaintext journal vs the AES-GCM encrypted store: lookup cost (one record
+ * decrypted per hit) and enroll cost (one record encrypted per save). Saves
+ * are appended synchronously without forcing them to disk, so {@code enroll}
+ * measures formatting, encryption and the append rather than fsync.
+ * Run with {@code ant bench -Dbench.include=EncryptedStoreBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncryptedStoreBenchmark {
+
+    @Param({"text", "encrypted"})
+    public String format;
+
+    @Param({"1000", "100000"})
+    public int accounts;
+
+    private Path dir;
+    private SecretStore store;
+    private String[] secrets;
+    private String hit;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("2fa-bench");
+        Path file = dir.resolve("store");
+        secrets = TOTP.generateSecrets(1024);
+        EncryptedSecretStore.Keys keys = format.equals("encrypted") ? EncryptedSecretStore.keys(file) : null;
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < accounts; i++) {
+                out.write(keys != null ? keys.formatLine(email(i), secrets[i & 1023], 0)
+                        : TextSecretStore.formatLine(email(i), secrets[i & 1023], 0));
+                out.write('\n');
+            }
+        }
+        store = keys != null
+                ? new EncryptedSecretStore(file, false, TwoFactorJournal.Durability.SHUTDOWN)
+                : new TextSecretStore(file, false, TwoFactorJournal.Durability.SHUTDOWN);
+        hit = email(accounts / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        try (var files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+
+    private static String email(int i) {
+        return "user" + i + "@example.com";
+    }
+
+    @Benchmark
+    public String lookupHit() {
+        return store.getSecret(hit);
+    }
+
+    @Benchmark
+    public String lookupMiss() {
+        return store.getSecret("nobody@example.com");
+    }
+
+    @Benchmark
+    public void enroll() {
+        int i = next++ % accounts;
+        store.put(email(i), secrets[(i + 1) & 1023], 0);
+    }
+}
@@ -0,0 +1,64 @@
+package ias.dekstop;
+
+import io.nayuki.qrcodegen.QrCode;
+import io.nayuki.qrcodegen.QrSegment;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QR encoding with automatic mask selection, exhaustive vs early-abort
+ * search, across symbol versions. {@code fixed} encodes with mask 0 and no
+ * search, so the search cost is the difference to it. Masks are scored on
+ * the calling thread only, so the numbers do not depend on the core count.
+ * Run with {@code ant bench -Dbench.include=QrMaskSearchBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dqrcodegen.concurrentMasks=false")
+@State(Scope.Benchmark)
+public class QrMaskSearchBenchmark {
+
+    @Param({"1", "5", "10", "15", "20", "25", "30", "35", "40"})
+    public int version;
+
+    @Param({"fixed", "exhaustive", "fast"})
+    public String search;
+
+    private List<QrSegment> segments;
+    private int mask;
+
+    @Setup
+    public void setup() {
+        // as many random bytes as the version holds at low ECC, so nothing is padding
+        int bytes = 1;
+        for (int step = 2048; step > 0; step >>= 1) {
+            if (fits(bytes + step)) bytes += step;
+        }
+        byte[] data = new byte[bytes];
+        new Random(42).nextBytes(data);
+        segments = Collections.singletonList(QrSegment.makeBytes(data));
+        mask = search.equals("fixed") ? 0 : -1;
+        System.setProperty("qrcodegen.maskSearch", search);
+    }
+
+    private boolean fits(int bytes) {
+        try {
+            QrCode.encodeSegments(Collections.singletonList(QrSegment.makeBytes(new byte[bytes])),
+                    QrCode.Ecc.LOW, version, version, 0, false);
+            return true;
+        } catch (QrCode.DataTooLongException e) {
+            return false;
+        }
+    }
+
+    @Benchmark
+    public QrCode encode() {
+        return QrCode.encodeSegments(segments, QrCode.Ecc.LOW, version, version, mask, false);
+    }
+}
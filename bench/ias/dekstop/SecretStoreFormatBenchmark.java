@@ -0,0 +1,100 @@
+package ias.dekstop;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Text journal vs memory-mapped binary store: cost of opening the store and
+ * answering the first lookup, and steady-state hit/miss lookups.
+ * Run with {@code ant bench -Dbench.include=SecretStoreFormatBenchmark}.
+ */
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SecretStoreFormatBenchmark {
+
+    @Param({"text", "binary"})
+    public String format;
+
+    @Param({"1000", "100000", "1000000"})
+    public int accounts;
+
+    private Path dir;
+    private Path file;
+    private SecretStore store;
+    private String hit;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("2fa-bench");
+        file = dir.resolve(format.equals("binary") ? "store.bin" : "store");
+        String[] secrets = TOTP.generateSecrets(1024);
+        if (format.equals("binary")) {
+            MappedSecretStore s = new MappedSecretStore(file);
+            for (int i = 0; i < accounts; i++) {
+                s.put(email(i), secrets[i & 1023], 0);
+            }
+            s.close();
+        } else {
+            try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                for (int i = 0; i < accounts; i++) {
+                    out.write(email(i) + "|" + secrets[i & 1023] + "\n");
+                }
+            }
+        }
+        store = open();
+        hit = email(accounts / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        close(store);
+        try (var files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+
+    private static String email(int i) {
+        return "user" + i + "@example.com";
+    }
+
+    private SecretStore open() throws IOException {
+        return format.equals("binary") ? new MappedSecretStore(file) : new TextSecretStore(file);
+    }
+
+    private static void close(SecretStore s) throws IOException {
+        s.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public String openAndFirstLookup() throws IOException {
+        SecretStore s = open();
+        String secret = s.getSecret(hit);
+        close(s);
+        return secret;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public String lookupHit() {
+        return store.getSecret(hit);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public boolean lookupMiss() {
+        return store.contains("nobody@example.com");
+    }
+}
@@ -0,0 +1,75 @@
+package ias.dekstop;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TOTP generate/verify cost, single-threaded and under contention.
+ * Run with {@code ant bench}; see build.xml.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TotpBenchmark {
+
+    private static final String SECRET = "JBSWY3DPEHPK3PXPJBSWY3DP";
+
+    private TotpKey key;
+    private String code;
+    private long counter;
+
+    @State(Scope.Thread)
+    public static class ThreadScratch {
+        final TotpKey.Scratch scratch = new TotpKey.Scratch();
+        String account;
+
+        @Setup
+        public void setup() {
+            account = "bench-" + Thread.currentThread().threadId() + "@example.com";
+        }
+    }
+
+    @Setup
+    public void setup() {
+        key = TotpKey.fromBase32(SECRET);
+        counter = TOTP.currentCounter();
+        // a wrong code forces the whole window to be checked
+        code = TOTP.formatCode((key.generate(counter, new TotpKey.Scratch()) + 1) % 1_000_000);
+    }
+
+    @Benchmark
+    public String generateCode() {
+        return TOTP.generateCode(SECRET);
+    }
+
+    @Benchmark
+    public int generateInt(ThreadScratch t) {
+        return key.generate(counter, t.scratch);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return TOTP.verify(SECRET, code);
+    }
+
+    @Benchmark
+    public boolean verifyPrecompiled(ThreadScratch t) {
+        return key.verify(TOTP.parseCode(code), counter, t.scratch);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean verifyContended() {
+        return TOTP.verify(SECRET, code);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean verifyCachedContended(ThreadScratch t) {
+        return TOTP.verify(t.account, SECRET, code);
+    }
+}
@@ -0,0 +1,112 @@
+package ias.dekstop;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many threads calling {@link TwoFactorStore#isEnabledForEmail} while one thread
+ * keeps enrolling accounts. Read latency should not track the writer's disk I/O.
+ * Each format runs in its own fork because the store's file and format are fixed
+ * when the class initializes.
+ * <p>
+ * The {@code rebuilding} group reads a binary store of its own while one thread
+ * keeps rebuilding it, sampling read latency so its tail shows whether readers
+ * wait for the rebuild's disk I/O. It does not use {@code format}.
+ * Run with {@code ant bench -Dbench.include=TwoFactorStoreContentionBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class TwoFactorStoreContentionBenchmark {
+
+    private static final int ACCOUNTS = 10_000;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    private String[] secrets;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @State(Scope.Group)
+    public static class Rebuilding {
+        Path dir;
+        MappedSecretStore store;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            dir = Files.createTempDirectory("2fa-rebuild");
+            store = new MappedSecretStore(dir.resolve("store.bin"));
+            String[] secrets = TOTP.generateSecrets(64);
+            for (int i = 0; i < ACCOUNTS; i++) {
+                store.put(email(i), secrets[i & 63], 0);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            store.close();
+            try (var files = Files.list(dir)) {
+                for (Path p : (Iterable<Path>) files::iterator) Files.delete(p);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        System.setProperty("user.home", Files.createTempDirectory("2fa-contention").toString());
+        System.setProperty("ias.2fa.format", format);
+        secrets = TOTP.generateSecrets(64);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            TwoFactorStore.saveSecretForEmail(email(i), secrets[i & 63]);
+        }
+    }
+
+    private static String email(int i) {
+        return "user" + i + "@example.com";
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(7)
+    public boolean lookup(Cursor c) {
+        // every other lookup misses
+        int i = c.next++ % (ACCOUNTS * 2);
+        return TwoFactorStore.isEnabledForEmail(email(i));
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(1)
+    public void enroll(Cursor c) {
+        int i = c.next++;
+        TwoFactorStore.saveSecretForEmail(email(i % ACCOUNTS), secrets[i & 63]);
+    }
+
+    @Benchmark
+    @Group("rebuilding")
+    @GroupThreads(7)
+    @BenchmarkMode(Mode.SampleTime)
+    public String lookupDuringRebuild(Rebuilding r, Cursor c) {
+        return r.store.getSecret(email(c.next++ % ACCOUNTS));
+    }
+
+    @Benchmark
+    @Group("rebuilding")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.SampleTime)
+    public void rebuild(Rebuilding r) throws IOException {
+        r.store.compact();
+    }
+}
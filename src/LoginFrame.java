@@ -205,8 +205,7 @@ public class LoginFrame extends JFrame {
                 if (result.requiresTotp) {
                     ok = verifyTotpWithBackend(code);
                 } else {
-                    String secret = TwoFactorStore.getSecretForEmail(email);
-                    ok = secret != null && TOTP.verify(secret, code);
+                    ok = TwoFactorStore.verifyCodeForEmail(email, code);
                 }
                 if (!ok) {
                     JOptionPane.showMessageDialog(this, "Invalid or expired code. Please try again.");
@@ -0,0 +1,160 @@
+package ias.dekstop;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Base32 (RFC 4648) codec - A-Z, 2-7. Table-driven, single pass, no regex.
+ * Decoding is case-insensitive and skips whitespace, '-' and '=' wherever they
+ * appear, so grouped or padded secrets ("JBSW Y3DP", "JBSWY3DP====") are accepted.
+ * Encoding never emits padding.
+ */
+public final class Base32 {
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+
+    private static final byte INVALID = -1;
+    private static final byte SKIP = -2;
+
+    /** Char (0-255) to 5-bit value, or INVALID / SKIP. */
+    private static final byte[] DECODE = new byte[256];
+
+    static {
+        Arrays.fill(DECODE, INVALID);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = (byte) i;
+            DECODE[Character.toLowerCase(ALPHABET[i])] = (byte) i;
+        }
+        for (char c : " \t\n\u000B\f\r-=".toCharArray()) {
+            DECODE[c] = SKIP;
+        }
+    }
+
+    private Base32() {}
+
+    /** Upper bound on the decoded size of {@code src}. */
+    public static int maxDecodedLength(CharSequence src) {
+        return (int) ((long) src.length() * 5 / 8);
+    }
+
+    /** Number of chars {@link #encode} writes for {@code len} bytes. */
+    public static int encodedLength(int len) {
+        return (int) (((long) len * 8 + 4) / 5);
+    }
+
+    /**
+     * Decode into a new array.
+     *
+     * @return decoded bytes, or null if {@code src} is null, empty or not Base32
+     */
+    public static byte[] decode(CharSequence src) {
+        if (src == null) return null;
+        byte[] out = new byte[maxDecodedLength(src)];
+        int n = decode(src, out, 0);
+        if (n <= 0) return null;
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Decode into {@code dst} starting at {@code off}. Trailing bits that do not
+     * fill a whole byte are dropped.
+     *
+     * @return number of bytes written, or -1 if {@code src} is not Base32 or does not fit
+     */
+    public static int decode(CharSequence src, byte[] dst, int off) {
+        int buf = 0, bits = 0, pos = off;
+        for (int i = 0, n = src.length(); i < n; i++) {
+            char c = src.charAt(i);
+            int v = c < 256 ? DECODE[c] : INVALID;
+            if (v < 0) {
+                if (v == SKIP) continue;
+                return -1;
+            }
+            buf = (buf << 5) | v;
+            bits += 5;
+            if (bits >= 8) {
+                bits -= 8;
+                if (pos >= dst.length) return -1;
+                dst[pos++] = (byte) (buf >> bits);
+            }
+        }
+        return pos - off;
+    }
+
+    /**
+     * Decode into {@code dst} at its position, advancing it.
+     *
+     * @return number of bytes written, or -1 if {@code src} is not Base32 or does not fit;
+     *         on failure the buffer position is unspecified
+     */
+    public static int decode(CharSequence src, ByteBuffer dst) {
+        int start = dst.position();
+        int buf = 0, bits = 0;
+        for (int i = 0, n = src.length(); i < n; i++) {
+            char c = src.charAt(i);
+            int v = c < 256 ? DECODE[c] : INVALID;
+            if (v < 0) {
+                if (v == SKIP) continue;
+                return -1;
+            }
+            buf = (buf << 5) | v;
+            bits += 5;
+            if (bits >= 8) {
+                bits -= 8;
+                if (!dst.hasRemaining()) return -1;
+                dst.put((byte) (buf >> bits));
+            }
+        }
+        return dst.position() - start;
+    }
+
+    /** Encode to a String without padding. */
+    public static String encode(byte[] src) {
+        char[] out = new char[encodedLength(src.length)];
+        encode(src, 0, src.length, out, 0);
+        return new String(out);
+    }
+
+    /**
+     * Encode {@code len} bytes of {@code src} into {@code dst} without padding.
+     * Whole 5-byte groups are converted 40 bits at a time.
+     *
+     * @return number of chars written
+     */
+    public static int encode(byte[] src, int off, int len, char[] dst, int dstOff) {
+        int pos = dstOff;
+        int end = off + len;
+        int i = off;
+        for (; i + 5 <= end; i += 5) {
+            long group = ((long) (src[i] & 0xFF) << 32)
+                    | ((long) (src[i + 1] & 0xFF) << 24)
+                    | ((src[i + 2] & 0xFF) << 16)
+                    | ((src[i + 3] & 0xFF) << 8)
+                    | (src[i + 4] & 0xFF);
+            for (int shift = 35; shift >= 0; shift -= 5) {
+                dst[pos++] = ALPHABET[(int) (group >>> shift) & 0x1F];
+            }
+        }
+        int buf = 0, bits = 0;
+        for (; i < end; i++) {
+            buf = (buf << 8) | (src[i] & 0xFF);
+            bits += 8;
+            while (bits >= 5) {
+                bits -= 5;
+                dst[pos++] = ALPHABET[(buf >> bits) & 0x1F];
+            }
+        }
+        if (bits > 0) {
+            dst[pos++] = ALPHABET[(buf << (5 - bits)) & 0x1F];
+        }
+        return pos - dstOff;
+    }
+
+    /** Encode {@code src} without padding, appending to {@code sb}. */
+    public static void encode(byte[] src, StringBuilder sb) {
+        char[] out = new char[encodedLength(src.length)];
+        encode(src, 0, src.length, out, 0);
+        sb.append(out);
+        Arrays.fill(out, '\0');
+    }
+}
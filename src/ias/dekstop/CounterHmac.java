@@ -0,0 +1,414 @@
+package ias.dekstop;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * HMAC specialized for TOTP: a fixed key over an 8-byte big-endian counter.
+ * The inner and outer padded-key blocks are compressed once when the key is
+ * built, so each code costs exactly two compression-function calls and works
+ * entirely in the caller's {@link TotpKey.Scratch}.
+ * Bit-exact with RFC 2104 HMAC over SHA-1, SHA-256 and SHA-512.
+ * <p>
+ * The two key states live in a {@link MemorySegment}: a private heap array by
+ * default, or a caller-supplied off-heap slot (see {@link SecretVault}) that
+ * can be wiped once the key is no longer needed.
+ */
+abstract class CounterHmac {
+
+    /** Inner key state followed by the outer one. */
+    final MemorySegment keyState;
+
+    CounterHmac(MemorySegment keyState) {
+        this.keyState = keyState;
+    }
+
+    /**
+     * Compute HMAC(key, counter) and apply RFC 4226 dynamic truncation.
+     *
+     * @return 6-digit code as an int
+     */
+    abstract int code(long counter, TotpKey.Scratch s);
+
+    static CounterHmac create(TOTP.Algorithm algorithm, byte[] key) {
+        return create(algorithm, key, MemorySegment.ofArray(new long[stateBytes(algorithm) / 8]));
+    }
+
+    /** Build the key states into {@code keyState}, which must hold {@link #stateBytes} bytes. */
+    static CounterHmac create(TOTP.Algorithm algorithm, byte[] key, MemorySegment keyState) {
+        switch (algorithm) {
+            case SHA256: return new Sha256(key, keyState);
+            case SHA512: return new Sha512(key, keyState);
+            default:     return new Sha1(key, keyState);
+        }
+    }
+
+    /** Size of the inner and outer key states for {@code algorithm}. */
+    static int stateBytes(TOTP.Algorithm algorithm) {
+        switch (algorithm) {
+            case SHA256: return 2 * 8 * 4;
+            case SHA512: return 2 * 8 * 8;
+            default:     return 2 * 5 * 4;
+        }
+    }
+
+    /** Zero the key states; the key must not be used afterwards. */
+    void wipe() {
+        keyState.fill((byte) 0);
+    }
+
+    /** Key zero-padded (or hashed, if longer) to one block, per RFC 2104. */
+    private static byte[] blockKey(byte[] key, int blockSize, String digest) {
+        byte[] k = key;
+        if (k.length > blockSize) {
+            try {
+                k = MessageDigest.getInstance(digest).digest(k);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return Arrays.copyOf(k, blockSize);
+    }
+
+    private static int bigEndianInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16)
+                | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static long bigEndianLong(byte[] b, int off) {
+        return ((long) bigEndianInt(b, off) << 32) | (bigEndianInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+
+    /** Byte {@code i} of a big-endian int array. */
+    private static int byteAt(int[] h, int i) {
+        return (h[i >> 2] >>> (24 - ((i & 3) << 3))) & 0xFF;
+    }
+
+    /** Byte {@code i} of a big-endian long array. */
+    private static int byteAt(long[] h, int i) {
+        return (int) (h[i >> 3] >>> (56 - ((i & 7) << 3))) & 0xFF;
+    }
+
+    private static int truncate(int[] h, int macLength) {
+        int offset = byteAt(h, macLength - 1) & 0x0F;
+        int binary = ((byteAt(h, offset) & 0x7F) << 24)
+                | (byteAt(h, offset + 1) << 16)
+                | (byteAt(h, offset + 2) << 8)
+                | byteAt(h, offset + 3);
+        return binary % TOTP.CODE_MODULUS;
+    }
+
+    private static int truncate(long[] h, int macLength) {
+        int offset = byteAt(h, macLength - 1) & 0x0F;
+        int binary = ((byteAt(h, offset) & 0x7F) << 24)
+                | (byteAt(h, offset + 1) << 16)
+                | (byteAt(h, offset + 2) << 8)
+                | byteAt(h, offset + 3);
+        return binary % TOTP.CODE_MODULUS;
+    }
+
+    // ---------------------------------------------------------------- SHA-1
+
+    private static final class Sha1 extends CounterHmac {
+        private static final int[] IV = {0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0};
+        // (block + message) * 8 for the inner and outer final blocks
+        private static final int INNER_BITS = (64 + 8) * 8;
+        private static final int OUTER_BITS = (64 + 20) * 8;
+
+        Sha1(byte[] key, MemorySegment keyState) {
+            super(keyState);
+            byte[] k = blockKey(key, 64, "SHA-1");
+            int[] w = new int[80];
+            int[] state = new int[5];
+            padState(k, 0x36, w, state);
+            MemorySegment.copy(state, 0, keyState, ValueLayout.JAVA_INT, 0, 5);
+            padState(k, 0x5C, w, state);
+            MemorySegment.copy(state, 0, keyState, ValueLayout.JAVA_INT, 20, 5);
+            Arrays.fill(k, (byte) 0);
+            Arrays.fill(w, 0);
+            Arrays.fill(state, 0);
+        }
+
+        private static void padState(byte[] k, int pad, int[] w, int[] state) {
+            for (int i = 0; i < 16; i++) {
+                w[i] = bigEndianInt(k, i * 4) ^ (pad * 0x01010101);
+            }
+            System.arraycopy(IV, 0, state, 0, 5);
+            compress(state, w);
+        }
+
+        @Override
+        int code(long counter, TotpKey.Scratch s) {
+            int[] h = s.state;
+            int[] w = s.w;
+            w[0] = (int) (counter >>> 32);
+            w[1] = (int) counter;
+            w[2] = 0x80000000;
+            Arrays.fill(w, 3, 15, 0);
+            w[15] = INNER_BITS;
+            MemorySegment.copy(keyState, ValueLayout.JAVA_INT, 0, h, 0, 5);
+            compress(h, w);
+
+            System.arraycopy(h, 0, w, 0, 5);
+            w[5] = 0x80000000;
+            Arrays.fill(w, 6, 15, 0);
+            w[15] = OUTER_BITS;
+            MemorySegment.copy(keyState, ValueLayout.JAVA_INT, 20, h, 0, 5);
+            compress(h, w);
+            return truncate(h, 20);
+        }
+
+        /** One SHA-1 block; w[0..15] holds the block and is expanded in place. */
+        private static void compress(int[] h, int[] w) {
+            for (int i = 16; i < 80; i++) {
+                w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+            }
+            int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4];
+            for (int i = 0; i < 20; i++) {
+                int t = Integer.rotateLeft(a, 5) + ((b & c) | (~b & d)) + e + 0x5A827999 + w[i];
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = t;
+            }
+            for (int i = 20; i < 40; i++) {
+                int t = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + 0x6ED9EBA1 + w[i];
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = t;
+            }
+            for (int i = 40; i < 60; i++) {
+                int t = Integer.rotateLeft(a, 5) + ((b & c) | (b & d) | (c & d)) + e + 0x8F1BBCDC + w[i];
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = t;
+            }
+            for (int i = 60; i < 80; i++) {
+                int t = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + 0xCA62C1D6 + w[i];
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = t;
+            }
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+        }
+    }
+
+    // -------------------------------------------------------------- SHA-256
+
+    private static final class Sha256 extends CounterHmac {
+        private static final int[] IV = {
+            0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A,
+            0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+        };
+        private static final int[] K = {
+            0x428A2F98, 0x71374491, 0xB5C0FBCF, 0xE9B5DBA5, 0x3956C25B, 0x59F111F1, 0x923F82A4, 0xAB1C5ED5,
+            0xD807AA98, 0x12835B01, 0x243185BE, 0x550C7DC3, 0x72BE5D74, 0x80DEB1FE, 0x9BDC06A7, 0xC19BF174,
+            0xE49B69C1, 0xEFBE4786, 0x0FC19DC6, 0x240CA1CC, 0x2DE92C6F, 0x4A7484AA, 0x5CB0A9DC, 0x76F988DA,
+            0x983E5152, 0xA831C66D, 0xB00327C8, 0xBF597FC7, 0xC6E00BF3, 0xD5A79147, 0x06CA6351, 0x14292967,
+            0x27B70A85, 0x2E1B2138, 0x4D2C6DFC, 0x53380D13, 0x650A7354, 0x766A0ABB, 0x81C2C92E, 0x92722C85,
+            0xA2BFE8A1, 0xA81A664B, 0xC24B8B70, 0xC76C51A3, 0xD192E819, 0xD6990624, 0xF40E3585, 0x106AA070,
+            0x19A4C116, 0x1E376C08, 0x2748774C, 0x34B0BCB5, 0x391C0CB3, 0x4ED8AA4A, 0x5B9CCA4F, 0x682E6FF3,
+            0x748F82EE, 0x78A5636F, 0x84C87814, 0x8CC70208, 0x90BEFFFA, 0xA4506CEB, 0xBEF9A3F7, 0xC67178F2
+        };
+        private static final int INNER_BITS = (64 + 8) * 8;
+        private static final int OUTER_BITS = (64 + 32) * 8;
+
+        Sha256(byte[] key, MemorySegment keyState) {
+            super(keyState);
+            byte[] k = blockKey(key, 64, "SHA-256");
+            int[] w = new int[64];
+            int[] state = new int[8];
+            padState(k, 0x36, w, state);
+            MemorySegment.copy(state, 0, keyState, ValueLayout.JAVA_INT, 0, 8);
+            padState(k, 0x5C, w, state);
+            MemorySegment.copy(state, 0, keyState, ValueLayout.JAVA_INT, 32, 8);
+            Arrays.fill(k, (byte) 0);
+            Arrays.fill(w, 0);
+            Arrays.fill(state, 0);
+        }
+
+        private static void padState(byte[] k, int pad, int[] w, int[] state) {
+            for (int i = 0; i < 16; i++) {
+                w[i] = bigEndianInt(k, i * 4) ^ (pad * 0x01010101);
+            }
+            System.arraycopy(IV, 0, state, 0, 8);
+            compress(state, w);
+        }
+
+        @Override
+        int code(long counter, TotpKey.Scratch s) {
+            int[] h = s.state;
+            int[] w = s.w;
+            w[0] = (int) (counter >>> 32);
+            w[1] = (int) counter;
+            w[2] = 0x80000000;
+            Arrays.fill(w, 3, 15, 0);
+            w[15] = INNER_BITS;
+            MemorySegment.copy(keyState, ValueLayout.JAVA_INT, 0, h, 0, 8);
+            compress(h, w);
+
+            System.arraycopy(h, 0, w, 0, 8);
+            w[8] = 0x80000000;
+            Arrays.fill(w, 9, 15, 0);
+            w[15] = OUTER_BITS;
+            MemorySegment.copy(keyState, ValueLayout.JAVA_INT, 32, h, 0, 8);
+            compress(h, w);
+            return truncate(h, 32);
+        }
+
+        private static void compress(int[] h, int[] w) {
+            for (int i = 16; i < 64; i++) {
+                int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+            int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+            for (int i = 0; i < 64; i++) {
+                int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+                int ch = (e & f) ^ (~e & g);
+                int t1 = hh + s1 + ch + K[i] + w[i];
+                int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+                int maj = (a & b) ^ (a & c) ^ (b & c);
+                int t2 = s0 + maj;
+                hh = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+            h[5] += f;
+            h[6] += g;
+            h[7] += hh;
+        }
+    }
+
+    // -------------------------------------------------------------- SHA-512
+
+    private static final class Sha512 extends CounterHmac {
+        private static final long[] IV = {
+            0x6A09E667F3BCC908L, 0xBB67AE8584CAA73BL, 0x3C6EF372FE94F82BL, 0xA54FF53A5F1D36F1L,
+            0x510E527FADE682D1L, 0x9B05688C2B3E6C1FL, 0x1F83D9ABFB41BD6BL, 0x5BE0CD19137E2179L
+        };
+        private static final long[] K = {
+            0x428A2F98D728AE22L, 0x7137449123EF65CDL, 0xB5C0FBCFEC4D3B2FL, 0xE9B5DBA58189DBBCL,
+            0x3956C25BF348B538L, 0x59F111F1B605D019L, 0x923F82A4AF194F9BL, 0xAB1C5ED5DA6D8118L,
+            0xD807AA98A3030242L, 0x12835B0145706FBEL, 0x243185BE4EE4B28CL, 0x550C7DC3D5FFB4E2L,
+            0x72BE5D74F27B896FL, 0x80DEB1FE3B1696B1L, 0x9BDC06A725C71235L, 0xC19BF174CF692694L,
+            0xE49B69C19EF14AD2L, 0xEFBE4786384F25E3L, 0x0FC19DC68B8CD5B5L, 0x240CA1CC77AC9C65L,
+            0x2DE92C6F592B0275L, 0x4A7484AA6EA6E483L, 0x5CB0A9DCBD41FBD4L, 0x76F988DA831153B5L,
+            0x983E5152EE66DFABL, 0xA831C66D2DB43210L, 0xB00327C898FB213FL, 0xBF597FC7BEEF0EE4L,
+            0xC6E00BF33DA88FC2L, 0xD5A79147930AA725L, 0x06CA6351E003826FL, 0x142929670A0E6E70L,
+            0x27B70A8546D22FFCL, 0x2E1B21385C26C926L, 0x4D2C6DFC5AC42AEDL, 0x53380D139D95B3DFL,
+            0x650A73548BAF63DEL, 0x766A0ABB3C77B2A8L, 0x81C2C92E47EDAEE6L, 0x92722C851482353BL,
+            0xA2BFE8A14CF10364L, 0xA81A664BBC423001L, 0xC24B8B70D0F89791L, 0xC76C51A30654BE30L,
+            0xD192E819D6EF5218L, 0xD69906245565A910L, 0xF40E35855771202AL, 0x106AA07032BBD1B8L,
+            0x19A4C116B8D2D0C8L, 0x1E376C085141AB53L, 0x2748774CDF8EEB99L, 0x34B0BCB5E19B48A8L,
+            0x391C0CB3C5C95A63L, 0x4ED8AA4AE3418ACBL, 0x5B9CCA4F7763E373L, 0x682E6FF3D6B2B8A3L,
+            0x748F82EE5DEFB2FCL, 0x78A5636F43172F60L, 0x84C87814A1F0AB72L, 0x8CC702081A6439ECL,
+            0x90BEFFFA23631E28L, 0xA4506CEBDE82BDE9L, 0xBEF9A3F7B2C67915L, 0xC67178F2E372532BL,
+            0xCA273ECEEA26619CL, 0xD186B8C721C0C207L, 0xEADA7DD6CDE0EB1EL, 0xF57D4F7FEE6ED178L,
+            0x06F067AA72176FBAL, 0x0A637DC5A2C898A6L, 0x113F9804BEF90DAEL, 0x1B710B35131C471BL,
+            0x28DB77F523047D84L, 0x32CAAB7B40C72493L, 0x3C9EBE0A15C9BEBCL, 0x431D67C49C100D4CL,
+            0x4CC5D4BECB3E42B6L, 0x597F299CFC657E2AL, 0x5FCB6FAB3AD6FAECL, 0x6C44198C4A475817L
+        };
+        private static final long INNER_BITS = (128 + 8) * 8;
+        private static final long OUTER_BITS = (128 + 64) * 8;
+
+        Sha512(byte[] key, MemorySegment keyState) {
+            super(keyState);
+            byte[] k = blockKey(key, 128, "SHA-512");
+            long[] w = new long[80];
+            long[] state = new long[8];
+            padState(k, 0x36, w, state);
+            MemorySegment.copy(state, 0, keyState, ValueLayout.JAVA_LONG, 0, 8);
+            padState(k, 0x5C, w, state);
+            MemorySegment.copy(state, 0, keyState, ValueLayout.JAVA_LONG, 64, 8);
+            Arrays.fill(k, (byte) 0);
+            Arrays.fill(w, 0);
+            Arrays.fill(state, 0);
+        }
+
+        private static void padState(byte[] k, int pad, long[] w, long[] state) {
+            for (int i = 0; i < 16; i++) {
+                w[i] = bigEndianLong(k, i * 8) ^ (pad * 0x0101010101010101L);
+            }
+            System.arraycopy(IV, 0, state, 0, 8);
+            compress(state, w);
+        }
+
+        @Override
+        int code(long counter, TotpKey.Scratch s) {
+            long[] h = s.state64;
+            long[] w = s.w64;
+            w[0] = counter;
+            w[1] = 0x8000000000000000L;
+            Arrays.fill(w, 2, 15, 0L);
+            w[15] = INNER_BITS;
+            MemorySegment.copy(keyState, ValueLayout.JAVA_LONG, 0, h, 0, 8);
+            compress(h, w);
+
+            System.arraycopy(h, 0, w, 0, 8);
+            w[8] = 0x8000000000000000L;
+            Arrays.fill(w, 9, 15, 0L);
+            w[15] = OUTER_BITS;
+            MemorySegment.copy(keyState, ValueLayout.JAVA_LONG, 64, h, 0, 8);
+            compress(h, w);
+            return truncate(h, 64);
+        }
+
+        private static void compress(long[] h, long[] w) {
+            for (int i = 16; i < 80; i++) {
+                long s0 = Long.rotateRight(w[i - 15], 1) ^ Long.rotateRight(w[i - 15], 8) ^ (w[i - 15] >>> 7);
+                long s1 = Long.rotateRight(w[i - 2], 19) ^ Long.rotateRight(w[i - 2], 61) ^ (w[i - 2] >>> 6);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+            long a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+            for (int i = 0; i < 80; i++) {
+                long s1 = Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41);
+                long ch = (e & f) ^ (~e & g);
+                long t1 = hh + s1 + ch + K[i] + w[i];
+                long s0 = Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39);
+                long maj = (a & b) ^ (a & c) ^ (b & c);
+                long t2 = s0 + maj;
+                hh = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+            h[5] += f;
+            h[6] += g;
+            h[7] += hh;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package ias.dekstop;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bloom filter over the normalized emails that have 2FA enrolled, persisted
+ * next to the store so a login for an account without 2FA can be answered
+ * from a few KB instead of loading every secret.
+ * <p>
+ * The filter only ever answers "definitely not enrolled" or "maybe": it is a
+ * superset of the store, so bits are set before the account is saved and are
+ * never cleared on removal. Adding sets bits in the mapped file with atomic
+ * ORs, which other processes mapping the same file see at once. Once more
+ * accounts were added than it was sized for, the owner rebuilds it from the
+ * store into a fresh file.
+ * <p>
+ * Accounts can also reach the store without passing through the filter (a
+ * process without the filter, a provisioning script, a hand edit, a restored
+ * backup). So the header records a {@link StoreStamp} of the store file the
+ * filter was built from, and a "no" only counts while the store still matches it.
+ * <p>
+ * Layout (big-endian): magic, version, hashes, capacity, count, words, then
+ * the store's identity, length, modification time and version (56 bytes), then
+ * {@code words} longs of bits.
+ */
+final class EmailBloomFilter {
+
+    private static final int MAGIC = 0x49415342; // "IASB"
+    private static final int VERSION = 2;
+
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_HASHES = 8;
+    private static final int H_CAPACITY = 12;
+    private static final int H_COUNT = 16;
+    private static final int H_WORDS = 20;
+    private static final int H_STORE_ID = 24;
+    private static final int H_STORE_LENGTH = 32;
+    private static final int H_STORE_MODIFIED = 40;
+    private static final int H_STORE_VERSION = 48;
+    private static final int HEADER_BYTES = 56;
+
+    // 10 bits and 7 probes per account: about 1% false positives at capacity
+    private static final int BITS_PER_ACCOUNT = 10;
+    private static final int HASHES = 7;
+    private static final int MIN_CAPACITY = 1024;
+
+    /** Atomic views for {@link #add}, in a holder so lookups don't pay for setting them up. */
+    private static final class Atomic {
+        static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+        static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * The state of a store file, compared to tell whether it changed. Any write
+     * changes the length or the modification time, and replacing the file
+     * changes its identity. {@code version} is a format-specific counter for
+     * files written in place through a mapping, whose modification time the OS
+     * may update late.
+     */
+    static final class StoreStamp {
+        // the store file does not exist
+        static final StoreStamp MISSING = new StoreStamp(0, -1, 0, 0);
+
+        final long identity;
+        final long length;
+        final long modified;
+        final long version;
+
+        StoreStamp(long identity, long length, long modified, long version) {
+            this.identity = identity;
+            this.length = length;
+            this.modified = modified;
+            this.version = version;
+        }
+
+        /** @return the stamp of {@code store} as it is now, or null if it cannot be read */
+        static StoreStamp of(Path store, long version) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(store, BasicFileAttributes.class);
+                Object id = attrs.fileKey() != null ? attrs.fileKey() : attrs.creationTime();
+                return new StoreStamp(hash(id.toString()), attrs.size(),
+                        attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), version);
+            } catch (NoSuchFileException e) {
+                return MISSING;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    private final Path file;
+    private final Object identity;
+    private final MappedByteBuffer map;
+    private final int hashes;
+    private final int capacity;
+    private final long bitMask;
+
+    private EmailBloomFilter(Path file, Object identity, MappedByteBuffer map) {
+        this.file = file;
+        this.identity = identity;
+        this.map = map;
+        this.hashes = map.getInt(H_HASHES);
+        this.capacity = map.getInt(H_CAPACITY);
+        this.bitMask = (long) map.getInt(H_WORDS) * 64 - 1;
+    }
+
+    /** @return the filter stored at {@code file}, or null if there is none or it is unreadable */
+    static EmailBloomFilter open(Path file) {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (ch.size() < HEADER_BYTES) return null;
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+            int words = map.getInt(H_WORDS);
+            if (map.getInt(H_MAGIC) != MAGIC || map.getInt(H_VERSION) != VERSION
+                    || Integer.bitCount(words) != 1 || ch.size() != HEADER_BYTES + (long) words * 8) {
+                return null;
+            }
+            return new EmailBloomFilter(file, SecretStore.fileIdentity(file), map);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write a filter holding every account in {@code store} to {@code file},
+     * replacing it. {@code stamp} must be taken before {@code store} last read
+     * its file, so that anything written after it makes the filter stale.
+     */
+    static EmailBloomFilter build(Path file, SecretStore store, StoreStamp stamp) throws IOException {
+        if (stamp == null) throw new IOException("Store file state unknown");
+        int capacity = Math.max(MIN_CAPACITY, store.size() * 2);
+        int needed = (int) (((long) capacity * BITS_PER_ACCOUNT + 63) / 64);
+        int words = Integer.highestOneBit(needed - 1) << 1;   // a power of two, so bits are masked
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) words * 8);
+            map.putInt(H_MAGIC, MAGIC);
+            map.putInt(H_VERSION, VERSION);
+            map.putInt(H_HASHES, HASHES);
+            map.putInt(H_CAPACITY, capacity);
+            map.putInt(H_WORDS, words);
+            map.putLong(H_STORE_ID, stamp.identity);
+            map.putLong(H_STORE_LENGTH, stamp.length);
+            map.putLong(H_STORE_MODIFIED, stamp.modified);
+            map.putLong(H_STORE_VERSION, stamp.version);
+            EmailBloomFilter filter = new EmailBloomFilter(tmp, null, map);
+            store.forEach((email, secret, drift) -> filter.add(email));
+            map.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file);
+    }
+
+    /**
+     * Whether the store is still the one the filter was built from, so that a
+     * "no" from {@link #mightContain} can be trusted. Check it after
+     * {@code mightContain}: accounts are added to the filter before the store.
+     */
+    boolean describes(StoreStamp stamp) {
+        return stamp != null
+                && map.getLong(H_STORE_ID) == stamp.identity
+                && map.getLong(H_STORE_LENGTH) == stamp.length
+                && map.getLong(H_STORE_MODIFIED) == stamp.modified
+                && map.getLong(H_STORE_VERSION) == stamp.version;
+    }
+
+    /** False only if {@code email} was certainly never added. */
+    boolean mightContain(String email) {
+        long h = hash(email);
+        long h2 = (h >>> 32) | 1;
+        for (int i = 0; i < hashes; i++, h += h2) {
+            long bit = h & bitMask;
+            long word = map.getLong(HEADER_BYTES + (int) (bit >>> 6) * 8);
+            if ((word & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Set the bits for {@code email} in the file.
+     *
+     * @return true while the filter is within the capacity it was sized for
+     */
+    boolean add(String email) {
+        long h = hash(email);
+        long h2 = (h >>> 32) | 1;
+        boolean changed = false;
+        for (int i = 0; i < hashes; i++, h += h2) {
+            long bit = h & bitMask;
+            long old = (long) Atomic.LONGS.getAndBitwiseOr(map, HEADER_BYTES + (int) (bit >>> 6) * 8, 1L << bit);
+            changed |= (old & (1L << bit)) == 0;
+        }
+        int count = changed ? (int) Atomic.INTS.getAndAdd(map, H_COUNT, 1) + 1
+                : (int) Atomic.INTS.getVolatile(map, H_COUNT);
+        return count <= capacity;
+    }
+
+    /** False once the file was replaced, e.g. rebuilt by another process; reopen it then. */
+    boolean isCurrent() {
+        try {
+            return Files.exists(file) && SecretStore.fileIdentity(file).equals(identity);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** 64-bit FNV-1a over the UTF-16 chars, finished with a murmur3 mix. */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
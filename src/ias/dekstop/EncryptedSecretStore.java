@@ -0,0 +1,384 @@
+package ias.dekstop;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encrypted-at-rest store: the text journal format (see {@link TextSecretStore})
+ * with every record sealed on its own with AES-GCM, so opening the store does
+ * no decryption, a lookup decrypts only the record it needs and a save
+ * encrypts only the new one.
+ * <p>
+ * A line is {@code index|sealed[|drift]}. The index is an HMAC of the email,
+ * so the file does not reveal who is enrolled; the sealed part is
+ * {@code nonce || AES-GCM(email NUL secret)} in Base64, with {@code index|drift}
+ * as associated data so a record cannot be moved to another account and its
+ * drift cannot be widened on disk. The drift is not secret and stays in the
+ * clear, but learning a new one re-seals that record. A removal is
+ * {@code index|-tag} with the tag an HMAC of the index, so lines added to the
+ * file cannot turn 2FA off for an account; a bare {@code index|} is ignored.
+ * Records go to the journal as opaque values (see {@link TextSecretStore.Removals}),
+ * so nothing is compiled or put in the vault for them.
+ * <p>
+ * The master key is derived once per process: with PBKDF2 from the
+ * {@code IAS_2FA_PASSPHRASE} environment variable (or {@code -Dias.2fa.passphrase})
+ * if set, otherwise read from a random key file created next to the store.
+ * A {@code .kdf} file next to the store holds the PBKDF2 salt and a key check,
+ * so a wrong passphrase is refused instead of making every account look
+ * unenrolled.
+ */
+final class EncryptedSecretStore implements SecretStore {
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int NONCE_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final int INDEX_BYTES = 16;
+    private static final int KEY_BYTES = 32;
+    private static final int SALT_BYTES = 16;
+    private static final int CHECK_BYTES = 16;
+    private static final int PBKDF2_ITERATIONS = 210_000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Map<Path, Keys> KEYS = new ConcurrentHashMap<>();
+
+    private final TextSecretStore records;
+    private final Keys keys;
+
+    /** Record key, index key and removal key for one store file, with per-thread primitives. */
+    static final class Keys implements TextSecretStore.Removals {
+        private final SecretKeySpec recordKey;
+        private final ThreadLocal<Mac> indexMac;
+        private final ThreadLocal<Mac> removalMac;
+        private final ThreadLocal<Cipher> cipher = ThreadLocal.withInitial(() -> {
+            try {
+                return Cipher.getInstance(CIPHER);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        private Keys(byte[] master) throws GeneralSecurityException {
+            recordKey = new SecretKeySpec(derive(master, "ias-2fa record"), "AES");
+            indexMac = macFor(new SecretKeySpec(derive(master, "ias-2fa index"), "HmacSHA256"));
+            removalMac = macFor(new SecretKeySpec(derive(master, "ias-2fa removal"), "HmacSHA256"));
+        }
+
+        private static ThreadLocal<Mac> macFor(SecretKeySpec key) {
+            return ThreadLocal.withInitial(() -> {
+                try {
+                    Mac mac = Mac.getInstance("HmacSHA256");
+                    mac.init(key);
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+
+        /** Journal key for {@code email}. */
+        String index(String email) {
+            byte[] mac = indexMac.get().doFinal(email.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(mac, INDEX_BYTES));
+        }
+
+        String seal(String index, String email, String secret, int drift) {
+            byte[] e = email.getBytes(StandardCharsets.UTF_8);
+            byte[] s = secret.getBytes(StandardCharsets.UTF_8);
+            byte[] plain = new byte[e.length + 1 + s.length];
+            System.arraycopy(e, 0, plain, 0, e.length);
+            System.arraycopy(s, 0, plain, e.length + 1, s.length);
+            byte[] out = new byte[NONCE_BYTES + plain.length + TAG_BITS / 8];
+            byte[] nonce = new byte[NONCE_BYTES];
+            RANDOM.nextBytes(nonce);
+            System.arraycopy(nonce, 0, out, 0, NONCE_BYTES);
+            try {
+                Cipher c = cipher.get();
+                c.init(Cipher.ENCRYPT_MODE, recordKey, new GCMParameterSpec(TAG_BITS, nonce));
+                c.updateAAD(associatedData(index, drift));
+                c.doFinal(plain, 0, plain.length, out, NONCE_BYTES);
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            } finally {
+                Arrays.fill(plain, (byte) 0);
+                Arrays.fill(s, (byte) 0);
+            }
+            return Base64.getEncoder().encodeToString(out);
+        }
+
+        /** @return {email, secret}, or null if the record does not authenticate with this index and drift */
+        String[] open(String index, String sealed, int drift) {
+            byte[] in;
+            try {
+                in = Base64.getDecoder().decode(sealed);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (in.length < NONCE_BYTES + TAG_BITS / 8) return null;
+            byte[] plain = null;
+            try {
+                Cipher c = cipher.get();
+                c.init(Cipher.DECRYPT_MODE, recordKey, new GCMParameterSpec(TAG_BITS, in, 0, NONCE_BYTES));
+                c.updateAAD(associatedData(index, drift));
+                plain = c.doFinal(in, NONCE_BYTES, in.length - NONCE_BYTES);
+                int sep = 0;
+                while (sep < plain.length && plain[sep] != 0) sep++;
+                if (sep == plain.length) return null;
+                return new String[] {
+                    new String(plain, 0, sep, StandardCharsets.UTF_8),
+                    new String(plain, sep + 1, plain.length - sep - 1, StandardCharsets.UTF_8)
+                };
+            } catch (AEADBadTagException tampered) {
+                return null;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                if (plain != null) Arrays.fill(plain, (byte) 0);
+            }
+        }
+
+        private static byte[] associatedData(String index, int drift) {
+            return (index + "|" + drift).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /** Tagged removal of the account at {@code index}; '-' is not in the Base64 of a sealed record. */
+        @Override
+        public String removal(String index) {
+            byte[] mac = removalMac.get().doFinal(index.getBytes(StandardCharsets.US_ASCII));
+            return "-" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(mac, INDEX_BYTES));
+        }
+
+        @Override
+        public boolean isRemoval(String index, String value) {
+            return value.startsWith("-") && MessageDigest.isEqual(
+                    value.getBytes(StandardCharsets.US_ASCII), removal(index).getBytes(StandardCharsets.US_ASCII));
+        }
+
+        /** One journal line setting {@code email}, as {@link TextSecretStore#formatLine} does for plaintext. */
+        String formatLine(String email, String secret, int drift) {
+            String index = index(email);
+            return TextSecretStore.formatLine(index, seal(index, email, secret, drift), drift);
+        }
+    }
+
+    /**
+     * @param writeBehind see {@link TextSecretStore}
+     * @param durability  see {@link TextSecretStore}
+     * @throws IOException if the key cannot be read or does not match the store
+     */
+    EncryptedSecretStore(Path file, boolean writeBehind, TwoFactorJournal.Durability durability)
+            throws IOException {
+        keys = keys(file);
+        records = new TextSecretStore(file, writeBehind, durability, keys);
+    }
+
+    /** The keys for the store at {@code file}, derived on first use in this process. */
+    static Keys keys(Path file) throws IOException {
+        Keys k = KEYS.get(file);
+        if (k != null) return k;
+        synchronized (KEYS) {
+            k = KEYS.get(file);
+            if (k == null) {
+                k = loadKeys(file);
+                KEYS.put(file, k);
+            }
+            return k;
+        }
+    }
+
+    private static Keys loadKeys(Path file) throws IOException {
+        Path kdf = file.resolveSibling(file.getFileName() + ".kdf");
+        byte[] salt;
+        byte[] check = null;
+        if (Files.exists(kdf)) {
+            byte[] stored = Files.readAllBytes(kdf);
+            if (stored.length != SALT_BYTES + CHECK_BYTES) throw new IOException("Corrupt key file: " + kdf);
+            salt = Arrays.copyOf(stored, SALT_BYTES);
+            check = Arrays.copyOfRange(stored, SALT_BYTES, stored.length);
+        } else {
+            salt = new byte[SALT_BYTES];
+            RANDOM.nextBytes(salt);
+        }
+        byte[] master = null;
+        try {
+            master = masterKey(file, salt);
+            byte[] expected = Arrays.copyOf(derive(master, "ias-2fa check"), CHECK_BYTES);
+            if (check == null) {
+                byte[] header = Arrays.copyOf(salt, SALT_BYTES + CHECK_BYTES);
+                System.arraycopy(expected, 0, header, SALT_BYTES, CHECK_BYTES);
+                // lost the race to another process: check against the salt it wrote instead
+                if (!createOnce(kdf, header)) return loadKeys(file);
+            } else if (!MessageDigest.isEqual(check, expected)) {
+                throw new IOException("Wrong passphrase or key for " + file);
+            }
+            return new Keys(master);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            if (master != null) Arrays.fill(master, (byte) 0);
+        }
+    }
+
+    private static byte[] masterKey(Path file, byte[] salt) throws IOException, GeneralSecurityException {
+        String passphrase = System.getenv("IAS_2FA_PASSPHRASE");
+        if (passphrase == null) passphrase = System.getProperty("ias.2fa.passphrase");
+        if (passphrase != null) {
+            PBEKeySpec spec = new PBEKeySpec(passphrase.toCharArray(), salt, PBKDF2_ITERATIONS, KEY_BYTES * 8);
+            try {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        }
+        Path keyFile = file.resolveSibling(file.getFileName() + ".key");
+        if (!Files.exists(keyFile)) {
+            byte[] key = new byte[KEY_BYTES];
+            RANDOM.nextBytes(key);
+            try {
+                createOnce(keyFile, key);
+            } finally {
+                Arrays.fill(key, (byte) 0);
+            }
+        }
+        byte[] key = Files.readAllBytes(keyFile);
+        if (key.length != KEY_BYTES) throw new IOException("Corrupt key file: " + keyFile);
+        return key;
+    }
+
+    /**
+     * Create {@code target} holding {@code data}, readable only by the owner:
+     * written to a temp file and forced, then put in place atomically, so it
+     * is never seen empty or half written.
+     *
+     * @return false if another process created it first; its content is kept
+     */
+    private static boolean createOnce(Path target, byte[] data) throws IOException {
+        Path dir = target.toAbsolutePath().getParent();
+        String prefix = target.getFileName().toString();
+        Path tmp;
+        try {
+            tmp = Files.createTempFile(dir, prefix, ".tmp", PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException notPosix) {
+            tmp = Files.createTempFile(dir, prefix, ".tmp");
+        }
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining()) ch.write(buf);
+                ch.force(true);
+            }
+            try {
+                // a link fails if the target exists, where a rename would replace a key already in use
+                Files.createLink(target, tmp);
+            } catch (FileAlreadyExistsException raced) {
+                return false;
+            } catch (UnsupportedOperationException | FileSystemException noLinks) {
+                try {
+                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException raced) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static byte[] derive(byte[] master, String label) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(master, "HmacSHA256"));
+        return mac.doFinal(label.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** The record at {@code index} opened against {@code drift}; null if absent or not authentic. */
+    private String[] open(String index, int drift) {
+        String sealed = records.getSecret(index);
+        return sealed != null ? keys.open(index, sealed, drift) : null;
+    }
+
+    @Override
+    public String getSecret(String email) {
+        String index = keys.index(email);
+        while (true) {
+            int drift = records.getDrift(index);
+            String[] record = open(index, drift);
+            if (record != null) return record[0].equals(email) ? record[1] : null;
+            // a put between the two reads pairs the new record with the old drift: read again
+            if (records.getDrift(index) == drift) return null;
+        }
+    }
+
+    @Override
+    public boolean contains(String email) {
+        return records.contains(keys.index(email));
+    }
+
+    @Override
+    public int getDrift(String email) {
+        String index = keys.index(email);
+        while (true) {
+            int drift = records.getDrift(index);
+            // a drift edited on disk would widen the window, so only one the record vouches for counts
+            if (drift == 0 || open(index, drift) != null) return drift;
+            if (records.getDrift(index) == drift) return 0;
+        }
+    }
+
+    @Override
+    public void put(String email, String secret, int drift) {
+        String index = keys.index(email);
+        records.put(index, keys.seal(index, email, secret, drift), drift);
+    }
+
+    @Override
+    public void remove(String email) {
+        records.remove(keys.index(email));
+    }
+
+    @Override
+    public int size() {
+        return records.size();
+    }
+
+    @Override
+    public void refresh() {
+        records.refresh();
+    }
+
+    @Override
+    public void close() throws IOException {
+        records.close();
+    }
+
+    @Override
+    public void forEach(Visitor visitor) throws IOException {
+        records.forEach((index, sealed, drift) -> {
+            String[] record = keys.open(index, sealed, drift);
+            if (record != null) visitor.visit(record[0], record[1], drift);
+        });
+    }
+}
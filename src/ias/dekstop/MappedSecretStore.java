@@ -0,0 +1,638 @@
+package ias.dekstop;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Binary store: a memory-mapped file with an open-addressing hash index keyed
+ * on normalized email. Opening only maps the file, so startup cost does not
+ * grow with the number of accounts, and lookups read straight from the mapped
+ * pages without materializing a map.
+ * <p>
+ * Layout (big-endian):
+ * <pre>
+ *   header   magic, version, capacity, count, usedSlots, deadRecords, dataEnd (32 bytes)
+ *   slots    capacity x long: hash &lt;&lt; 32 | record offset from data start
+ *            (0 = empty, offset 0xFFFFFFFF = removed)
+ *   records  u16 email length, email (UTF-8), u8 secret length, secret (ASCII), i32 drift
+ * </pre>
+ * Records are never modified in place: an update appends a new record and
+ * repoints its slot. The file is rebuilt into a fresh one when the index gets
+ * half full or dead records outnumber live ones.
+ * <p>
+ * Reads are optimistic ({@link StampedLock#tryOptimisticRead}): they run without
+ * locking and are retried under the read lock only if a write overlapped them.
+ * Writers are serialized on the store's monitor and take the write lock only
+ * while they change the index or swap in a new mapping. Growing, rebuilding
+ * and refreshing create, fill, force and map the new file before that, so a
+ * reader never waits for the disk.
+ * <p>
+ * When a put or remove is forced to disk is set by
+ * {@link TwoFactorJournal.Durability}, as for the journal: after every write
+ * (just the record, slot and header it touched), at most once a second, or
+ * only at shutdown. A shutdown hook forces what is left; {@link #close}
+ * removes it.
+ * <p>
+ * Other processes may map the same file and see its changes through
+ * {@link #refresh}. Writers take the store's {@link StoreFileLock} and first
+ * catch up with the file, so writes from several processes do not interleave
+ * and none lands in a file another process has replaced.
+ */
+final class MappedSecretStore implements SecretStore {
+
+    private static final int MAGIC = 0x49415332; // "IAS2"
+    private static final int VERSION = 1;
+
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private static final long H_MAGIC = 0;
+    private static final long H_VERSION = 4;
+    private static final long H_CAPACITY = 8;
+    private static final long H_COUNT = 12;
+    private static final long H_USED_SLOTS = 16;
+    private static final long H_DEAD = 20;
+    private static final long H_DATA_END = 24;
+    private static final long HEADER_BYTES = 32;
+
+    private static final int MIN_CAPACITY = 1024;
+    private static final long MIN_DATA_BYTES = 64 * 1024;
+    private static final long REMOVED = 0xFFFFFFFFL;
+    private static final long NOT_FOUND = Long.MIN_VALUE;
+    private static final long SYNC_INTERVAL_MS = 1000;
+
+    private final Path file;
+    private final TwoFactorJournal.Durability durability;
+    private final Thread shutdownHook;
+    private final StoreFileLock fileLock;   // null for a private copy
+    private final StampedLock lock = new StampedLock();
+    private FileChannel channel;
+    private Arena arena;
+    private MemorySegment map;
+    private int capacity;
+    private long dataStart;
+    private Object identity;   // of the mapped file, to notice it being replaced
+    private boolean unsynced;
+    private long lastSync;
+
+    /**
+     * A store no other process writes to, such as an import's private copy:
+     * writes take no file lock and are forced only when it is closed or at shutdown.
+     */
+    MappedSecretStore(Path file) throws IOException {
+        this(file, TwoFactorJournal.Durability.SHUTDOWN, null);
+    }
+
+    MappedSecretStore(Path file, TwoFactorJournal.Durability durability) throws IOException {
+        this(file, durability, StoreFileLock.of(file));
+    }
+
+    private MappedSecretStore(Path file, TwoFactorJournal.Durability durability, StoreFileLock fileLock)
+            throws IOException {
+        this.file = file;
+        this.durability = durability;
+        this.fileLock = fileLock;
+        if (!Files.exists(file) || Files.size(file) < HEADER_BYTES) {
+            create(file, MIN_CAPACITY, MIN_DATA_BYTES);
+        }
+        mapFile();
+        if (map.get(INT, H_MAGIC) != MAGIC || map.get(INT, H_VERSION) != VERSION) {
+            unmap();
+            throw new IOException("Not a 2FA store file: " + file);
+        }
+        if (durability != TwoFactorJournal.Durability.BATCH) {
+            shutdownHook = new Thread(this::forceQuietly, "2fa-store-flush");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } else {
+            shutdownHook = null;
+        }
+    }
+
+    /**
+     * End of the record data in the store at {@code file}. Every write appends
+     * a record, so this changes with each one even where the OS is slow to
+     * update the modification time of a file written through a mapping.
+     */
+    static long dataEnd(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocate(8);
+            while (b.hasRemaining() && ch.read(b, H_DATA_END + b.position()) >= 0) {
+                // read until the header field is complete or the file ends
+            }
+            return b.hasRemaining() ? -1 : b.getLong(0);
+        }
+    }
+
+    private static void create(Path file, int capacity, long dataBytes) throws IOException {
+        long size = HEADER_BYTES + (long) capacity * 8 + dataBytes;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Arena a = Arena.ofConfined()) {
+            MemorySegment m = ch.map(FileChannel.MapMode.READ_WRITE, 0, size, a);
+            writeHeader(m, capacity);
+            m.force();
+        }
+    }
+
+    private static void writeHeader(MemorySegment m, int capacity) {
+        m.set(INT, H_MAGIC, MAGIC);
+        m.set(INT, H_VERSION, VERSION);
+        m.set(INT, H_CAPACITY, capacity);
+        m.set(INT, H_COUNT, 0);
+        m.set(INT, H_USED_SLOTS, 0);
+        m.set(INT, H_DEAD, 0);
+        m.set(LONG, H_DATA_END, HEADER_BYTES + (long) capacity * 8);
+    }
+
+    /** Map the file as it is now and swap it in. */
+    private void mapFile() throws IOException {
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Object id = SecretStore.fileIdentity(file);
+        Arena a = Arena.ofShared();
+        swap(ch, a, ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size(), a), id);
+    }
+
+    /**
+     * Point readers at a mapping that is ready to use. This is the only part of
+     * growing, rebuilding or refreshing that holds the write lock; the old
+     * mapping is closed after it is released.
+     */
+    private void swap(FileChannel ch, Arena a, MemorySegment m, Object id) throws IOException {
+        FileChannel oldChannel = channel;
+        Arena oldArena = arena;
+        int newCapacity = m.get(INT, H_CAPACITY);
+        long stamp = lock.writeLock();
+        try {
+            channel = ch;
+            arena = a;
+            map = m;
+            capacity = newCapacity;
+            dataStart = HEADER_BYTES + (long) newCapacity * 8;
+            identity = id;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (oldArena != null) closeArena(oldArena);
+        if (oldChannel != null && oldChannel != ch) oldChannel.close();
+    }
+
+    /** Flush and unmap. The store must not be used afterwards. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException shuttingDown) {
+                // the hook is running or about to; unmap forces anyway
+            }
+        }
+        long stamp = lock.writeLock();
+        try {
+            unmap();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void unmap() throws IOException {
+        map.force();
+        closeArena(arena);
+        channel.close();
+    }
+
+    /**
+     * Force the regions a put or remove just wrote, as {@link #durability} asks.
+     * Called after the write lock is released, so readers never wait on the disk.
+     */
+    private void sync(long rec, long len, int slot) throws IOException {
+        try {
+            switch (durability) {
+                case BATCH -> {
+                    if (rec >= 0) map.asSlice(rec, len).force();
+                    map.asSlice(slotOffset(slot), 8).force();
+                    map.asSlice(0, HEADER_BYTES).force();
+                }
+                case PERIODIC -> {
+                    long now = System.currentTimeMillis();
+                    if (now - lastSync >= SYNC_INTERVAL_MS) {
+                        map.force();
+                        unsynced = false;
+                        lastSync = now;
+                    } else {
+                        unsynced = true;
+                    }
+                }
+                case SHUTDOWN -> unsynced = true;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** Shutdown hook: force what has not been forced yet. */
+    private synchronized void forceQuietly() {
+        if (!unsynced) return;
+        try {
+            map.force();
+            unsynced = false;
+        } catch (UncheckedIOException e) {
+            TwoFactorStoreStats.INSTANCE.error("flush binary store", e.getCause());
+        }
+    }
+
+    /**
+     * Close a mapping arena. An optimistic reader may still be inside a bulk
+     * copy on it, which makes close fail; those finish in nanoseconds, so retry.
+     */
+    private static void closeArena(Arena a) {
+        while (true) {
+            try {
+                a.close();
+                return;
+            } catch (IllegalStateException inUse) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private static int hash(String email) {
+        int h = email.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return h != 0 ? h : 1;
+    }
+
+    private static long slotOffset(int slot) {
+        return HEADER_BYTES + (long) slot * 8;
+    }
+
+    /**
+     * Probing is bounded by the capacity so that an optimistic reader racing a
+     * rebuild (and seeing a mismatched map and capacity) still terminates.
+     *
+     * @return absolute offset of the live record for email, or -1
+     */
+    private long findRecord(String email, byte[] key) {
+        int h = hash(email);
+        int mask = capacity - 1;
+        for (int i = 0, slot = h & mask; i < capacity; i++, slot = (slot + 1) & mask) {
+            long s = map.get(LONG, slotOffset(slot));
+            if (s == 0) return -1;
+            long rel = s & 0xFFFFFFFFL;
+            if ((int) (s >>> 32) == h && rel != REMOVED) {
+                long rec = dataStart + rel;
+                if (emailEquals(rec, key)) return rec;
+            }
+        }
+        return -1;
+    }
+
+    /** @return slot holding the live record for email, or -(insertion slot) - 1 */
+    private int findSlot(String email, byte[] key) {
+        int h = hash(email);
+        int mask = capacity - 1;
+        int firstRemoved = -1;
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            long s = map.get(LONG, slotOffset(slot));
+            if (s == 0) return -(firstRemoved >= 0 ? firstRemoved : slot) - 1;
+            long rel = s & 0xFFFFFFFFL;
+            if (rel == REMOVED) {
+                if (firstRemoved < 0) firstRemoved = slot;
+            } else if ((int) (s >>> 32) == h && emailEquals(dataStart + rel, key)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean emailEquals(long rec, byte[] key) {
+        int len = map.get(SHORT, rec) & 0xFFFF;
+        if (len != key.length) return false;
+        return MemorySegment.mismatch(map, rec + 2, rec + 2 + len,
+                MemorySegment.ofArray(key), 0, len) == -1;
+    }
+
+    private long secretOffset(long rec) {
+        return rec + 2 + (map.get(SHORT, rec) & 0xFFFF);
+    }
+
+    private static byte[] key(String email) {
+        return email.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String getSecret(String email) {
+        byte[] key = key(email);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                String secret = readSecret(email, key);
+                if (lock.validate(stamp)) return secret;
+            } catch (RuntimeException raced) {
+                // a concurrent write moved or unmapped what we were reading
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return readSecret(email, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean contains(String email) {
+        return getDrift(email, key(email)) != NOT_FOUND;
+    }
+
+    @Override
+    public int getDrift(String email) {
+        long drift = getDrift(email, key(email));
+        return drift != NOT_FOUND ? (int) drift : 0;
+    }
+
+    /** @return drift, or NOT_FOUND */
+    private long getDrift(String email, byte[] key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                long drift = readDrift(email, key);
+                if (lock.validate(stamp)) return drift;
+            } catch (RuntimeException raced) {
+                // a concurrent write moved or unmapped what we were reading
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return readDrift(email, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private String readSecret(String email, byte[] key) {
+        long rec = findRecord(email, key);
+        if (rec < 0) return null;
+        long off = secretOffset(rec);
+        byte[] secret = new byte[map.get(ValueLayout.JAVA_BYTE, off) & 0xFF];
+        MemorySegment.copy(map, ValueLayout.JAVA_BYTE, off + 1, secret, 0, secret.length);
+        return new String(secret, StandardCharsets.US_ASCII);
+    }
+
+    private long readDrift(String email, byte[] key) {
+        long rec = findRecord(email, key);
+        if (rec < 0) return NOT_FOUND;
+        long off = secretOffset(rec);
+        return map.get(INT, off + 1 + (map.get(ValueLayout.JAVA_BYTE, off) & 0xFF));
+    }
+
+    @Override
+    public synchronized void put(String email, String secret, int drift) {
+        byte[] key = key(email);
+        byte[] value = secret.getBytes(StandardCharsets.US_ASCII);
+        if (key.length > 0xFFFF || value.length > 0xFF) {
+            throw new IllegalArgumentException("Email or secret too long");
+        }
+        long started = System.nanoTime();
+        try {
+            lockFile();
+        } catch (IOException e) {
+            TwoFactorStoreStats.INSTANCE.error("write binary store", e);
+            return;
+        }
+        try {
+            long len = 2 + key.length + 1 + value.length + 4;
+            ensureRoom(len);
+            long rec;
+            int slot;
+            long stamp = lock.writeLock();
+            try {
+                rec = appendRecord(key, value, drift, len);
+                slot = findSlot(email, key);
+                long entry = ((long) hash(email) << 32) | (rec - dataStart);
+                if (slot >= 0) {
+                    map.set(LONG, slotOffset(slot), entry);
+                    map.set(INT, H_DEAD, map.get(INT, H_DEAD) + 1);
+                } else {
+                    slot = -slot - 1;
+                    if (map.get(LONG, slotOffset(slot)) == 0) {
+                        map.set(INT, H_USED_SLOTS, map.get(INT, H_USED_SLOTS) + 1);
+                    }
+                    map.set(LONG, slotOffset(slot), entry);
+                    map.set(INT, H_COUNT, map.get(INT, H_COUNT) + 1);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            // before a rebuild moves the record; a rebuild forces its own file
+            sync(rec, len, slot);
+            maybeRebuild();
+            TwoFactorStoreStats.INSTANCE.wrote(started, 1);
+        } catch (IOException e) {
+            TwoFactorStoreStats.INSTANCE.error("write binary store", e);
+        } finally {
+            unlockFile();
+        }
+    }
+
+    @Override
+    public synchronized void remove(String email) {
+        try {
+            lockFile();
+        } catch (IOException e) {
+            TwoFactorStoreStats.INSTANCE.error("write binary store", e);
+            return;
+        }
+        try {
+            int slot;
+            long stamp = lock.writeLock();
+            try {
+                slot = findSlot(email, key(email));
+                if (slot < 0) return;
+                long s = map.get(LONG, slotOffset(slot));
+                map.set(LONG, slotOffset(slot), (s & 0xFFFFFFFF00000000L) | REMOVED);
+                map.set(INT, H_COUNT, map.get(INT, H_COUNT) - 1);
+                map.set(INT, H_DEAD, map.get(INT, H_DEAD) + 1);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            sync(-1, 0, slot);
+        } catch (IOException e) {
+            TwoFactorStoreStats.INSTANCE.error("write binary store", e);
+        } finally {
+            unlockFile();
+        }
+    }
+
+    /** Take the store's file lock, if it has one, and catch up with what other processes did. */
+    private void lockFile() throws IOException {
+        if (fileLock == null) return;
+        fileLock.lock();
+        try {
+            catchUp();
+        } catch (IOException | RuntimeException e) {
+            fileLock.unlock();
+            throw e;
+        }
+    }
+
+    private void unlockFile() {
+        if (fileLock != null) fileLock.unlock();
+    }
+
+    /** Walks the index under the read lock, decoding one record at a time. */
+    @Override
+    public void forEach(Visitor visitor) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                long s = map.get(LONG, slotOffset(slot));
+                long rel = s & 0xFFFFFFFFL;
+                if (s == 0 || rel == REMOVED) continue;
+                long rec = dataStart + rel;
+                byte[] email = new byte[map.get(SHORT, rec) & 0xFFFF];
+                MemorySegment.copy(map, ValueLayout.JAVA_BYTE, rec + 2, email, 0, email.length);
+                long off = secretOffset(rec);
+                byte[] secret = new byte[map.get(ValueLayout.JAVA_BYTE, off) & 0xFF];
+                MemorySegment.copy(map, ValueLayout.JAVA_BYTE, off + 1, secret, 0, secret.length);
+                visitor.visit(new String(email, StandardCharsets.UTF_8),
+                        new String(secret, StandardCharsets.US_ASCII),
+                        map.get(INT, off + 1 + secret.length));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Records another process writes into the file land in the shared mapping
+     * and are visible without doing anything. What needs attention is the file
+     * growing past the mapping, or being replaced by a rebuild.
+     */
+    @Override
+    public synchronized void refresh() {
+        try {
+            catchUp();
+        } catch (IOException e) {
+            TwoFactorStoreStats.INSTANCE.error("refresh binary store", e);
+        }
+    }
+
+    /** Map the file again if it was replaced or grew past the mapping. */
+    private void catchUp() throws IOException {
+        if (!SecretStore.fileIdentity(file).equals(identity)) {
+            mapFile();
+        } else if (channel.size() > map.byteSize()) {
+            remap(channel.size());
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return map.get(INT, H_COUNT);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Grow the mapping, if needed, so a record of {@code len} bytes fits after the data. */
+    private void ensureRoom(long len) throws IOException {
+        long end = map.get(LONG, H_DATA_END);
+        if (end + len > map.byteSize()) {
+            remap(Math.max(map.byteSize() * 2, end + len));
+        }
+    }
+
+    /** Append a record of {@code len} bytes; {@link #ensureRoom} made space for it. */
+    private long appendRecord(byte[] key, byte[] value, int drift, long len) {
+        long rec = map.get(LONG, H_DATA_END);
+        map.set(SHORT, rec, (short) key.length);
+        MemorySegment.copy(key, 0, map, ValueLayout.JAVA_BYTE, rec + 2, key.length);
+        long off = rec + 2 + key.length;
+        map.set(ValueLayout.JAVA_BYTE, off, (byte) value.length);
+        MemorySegment.copy(value, 0, map, ValueLayout.JAVA_BYTE, off + 1, value.length);
+        map.set(INT, off + 1 + value.length, drift);
+        map.set(LONG, H_DATA_END, rec + len);
+        return rec;
+    }
+
+    private void remap(long size) throws IOException {
+        Arena a = Arena.ofShared();
+        swap(channel, a, channel.map(FileChannel.MapMode.READ_WRITE, 0, size, a), identity);
+    }
+
+    /** Rewrite the file without dead records, as a write does once they outnumber live ones. */
+    synchronized void compact() throws IOException {
+        lockFile();
+        try {
+            rebuild(capacity);
+        } finally {
+            unlockFile();
+        }
+    }
+
+    private void maybeRebuild() throws IOException {
+        int count = map.get(INT, H_COUNT);
+        int used = map.get(INT, H_USED_SLOTS);
+        int dead = map.get(INT, H_DEAD);
+        if (used * 2 > capacity) {
+            rebuild(count * 4 > capacity ? capacity * 2 : capacity);
+        } else if (dead > count && dead > MIN_CAPACITY) {
+            rebuild(capacity);
+        }
+    }
+
+    /**
+     * Copy live records into a fresh file with {@code newCapacity} slots and
+     * swap it in. Only writers change the mapping and they are locked out, so
+     * the copy runs alongside readers.
+     */
+    private void rebuild(int newCapacity) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".rebuild");
+        long liveBytes = map.get(LONG, H_DATA_END) - dataStart;
+        create(tmp, newCapacity, Math.max(MIN_DATA_BYTES, liveBytes));
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             Arena a = Arena.ofConfined()) {
+            MemorySegment dst = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size(), a);
+            long newDataStart = HEADER_BYTES + (long) newCapacity * 8;
+            long end = newDataStart;
+            int count = 0;
+            int mask = newCapacity - 1;
+            for (int slot = 0; slot < capacity; slot++) {
+                long s = map.get(LONG, slotOffset(slot));
+                long rel = s & 0xFFFFFFFFL;
+                if (s == 0 || rel == REMOVED) continue;
+                long rec = dataStart + rel;
+                long off = secretOffset(rec);
+                long len = off + 1 + (map.get(ValueLayout.JAVA_BYTE, off) & 0xFF) + 4 - rec;
+                MemorySegment.copy(map, rec, dst, end, len);
+                int h = (int) (s >>> 32);
+                int to = h & mask;
+                while (dst.get(LONG, slotOffset(to)) != 0) to = (to + 1) & mask;
+                dst.set(LONG, slotOffset(to), ((long) h << 32) | (end - newDataStart));
+                end += len;
+                count++;
+            }
+            dst.set(INT, H_COUNT, count);
+            dst.set(INT, H_USED_SLOTS, count);
+            dst.set(LONG, H_DATA_END, end);
+            dst.force();
+        }
+        // readers keep the old mapping, which holds the same accounts, until the swap
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mapFile();
+    }
+}
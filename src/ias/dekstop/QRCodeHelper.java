@@ -26,10 +26,20 @@ public final class QRCodeHelper {
             int scale = Math.max(1, TARGET_SIZE_PX / modules);
             int size = modules * scale;
             BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
-            for (int y = 0; y < img.getHeight(); y++) {
-                for (int x = 0; x < img.getWidth(); x++) {
-                    boolean dark = qr.getModule(x / scale - BORDER, y / scale - BORDER);
-                    img.setRGB(x, y, dark ? 0x000000 : 0xFFFFFF);
+            // render each module row once, then repeat it for the scaled pixel rows
+            int[] pixels = new int[size];
+            long[] row = new long[qr.getRowWords()];
+            for (int my = 0; my < modules; my++) {
+                int qy = my - BORDER;
+                if (qy >= 0 && qy < qr.size) qr.getRow(qy, row, 0);
+                for (int x = 0; x < size; x++) {
+                    int qx = x / scale - BORDER;
+                    boolean dark = qy >= 0 && qy < qr.size && qx >= 0 && qx < qr.size
+                            && (row[qx >>> 6] >>> qx & 1) != 0;
+                    pixels[x] = dark ? 0x000000 : 0xFFFFFF;
+                }
+                for (int y = my * scale; y < (my + 1) * scale; y++) {
+                    img.setRGB(0, y, size, 1, pixels, 0, size);
                 }
             }
             return img;
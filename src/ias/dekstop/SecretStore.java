@@ -0,0 +1,77 @@
+package ias.dekstop;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Storage backend for {@link TwoFactorStore}. Emails passed in are already
+ * normalized. Reads may run on any thread at any time and must not block on
+ * writers' disk I/O; writes ({@link #put}, {@link #remove}) are serialized by
+ * the facade.
+ */
+interface SecretStore {
+
+    /** @return Base32 secret, or null if 2FA is not enabled for the email */
+    String getSecret(String email);
+
+    boolean contains(String email);
+
+    /** @return learned clock drift in TOTP steps, 0 if unknown */
+    int getDrift(String email);
+
+    /**
+     * Find the step offset at which a parsed code is valid for the email (see
+     * {@link TotpWindowCache#match}). Stores that keep compiled keys verify
+     * from them without copying the secret out.
+     *
+     * @return matching offset, or {@link TOTP#NO_MATCH} (also if 2FA is not enabled)
+     */
+    default int matchOffset(String email, int code, long step, int drift) {
+        String secret = getSecret(email);
+        if (secret == null) return TOTP.NO_MATCH;
+        return TotpWindowCache.INSTANCE.match(email, secret, code, step, drift);
+    }
+
+    void put(String email, String secret, int drift);
+
+    /** Change the learned drift of the email's current secret; nothing if it has none. */
+    default void putDrift(String email, int drift) {
+        String secret = getSecret(email);
+        if (secret != null) put(email, secret, drift);
+    }
+
+    void remove(String email);
+
+    int size();
+
+    /**
+     * Pick up changes other processes made to the backing file since it was
+     * loaded, touching only what changed where the format allows it.
+     */
+    void refresh();
+
+    /**
+     * Write out anything not yet on disk and release the store's threads,
+     * hooks and mappings. The store must not be used afterwards.
+     */
+    default void close() throws IOException {}
+
+    /** Visit every account; the order is unspecified. */
+    void forEach(Visitor visitor) throws IOException;
+
+    interface Visitor {
+        void visit(String email, String secret, int drift) throws IOException;
+    }
+
+    /**
+     * Something that changes when the file at {@code path} is replaced rather
+     * than written in place: its file key, or its creation time where the
+     * platform has no file keys.
+     */
+    static Object fileIdentity(Path path) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        return attrs.fileKey() != null ? attrs.fileKey() : attrs.creationTime();
+    }
+}
@@ -0,0 +1,185 @@
+package ias.dekstop;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Off-heap home for 2FA key material, so secrets are neither scanned by the GC
+ * nor left behind in freed heap objects. Memory comes from one shared
+ * {@link Arena} in 64 KB slabs cut into power-of-two slots; a slot is named by
+ * a {@code long} handle and zeroed as soon as it is freed. There is one vault
+ * per process ({@link #INSTANCE}); a shutdown hook zeroes every slab before
+ * the arena is closed, after which reads throw {@link IllegalStateException}.
+ * <p>
+ * Allocation and freeing are synchronized. Reading a slot takes no lock, so a
+ * reader can race a free: callers keep a slot's handle in an immutable holder,
+ * replace the holder before freeing, and re-check after reading that the holder
+ * is still current ({@link #validate}), much like an optimistic read.
+ */
+final class SecretVault {
+
+    private static final int MIN_SLOT_SHIFT = 4;     // 16 bytes
+    private static final int MAX_SLOT_SHIFT = 16;    // 64 KB
+    private static final long SLAB_BYTES = 64 * 1024;
+
+    private static final ValueLayout.OfShort LENGTH =
+            ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    static final SecretVault INSTANCE = new SecretVault();
+
+    private final Arena arena = Arena.ofShared();
+    // slab i holds slots of 1 << slotShift[i] bytes; both arrays only grow
+    private volatile MemorySegment[] slabs = new MemorySegment[0];
+    private volatile int[] slotShift = new int[0];
+    // per size class: slab being carved and its next free offset, and freed handles
+    private final int[] carveSlab = new int[MAX_SLOT_SHIFT + 1];
+    private final long[] carveOffset = new long[MAX_SLOT_SHIFT + 1];
+    private final long[][] freed = new long[MAX_SLOT_SHIFT + 1][];
+    private final int[] freedCount = new int[MAX_SLOT_SHIFT + 1];
+    private volatile boolean closed;
+
+    private SecretVault() {
+        Arrays.fill(carveSlab, -1);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "2fa-vault-wipe"));
+    }
+
+    /** @return handle of a zeroed slot of at least {@code bytes} bytes */
+    synchronized long allocate(int bytes) {
+        if (closed) throw new IllegalStateException("vault closed");
+        int shift = Math.max(MIN_SLOT_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, bytes) - 1));
+        if (shift > MAX_SLOT_SHIFT) throw new IllegalArgumentException("secret too large: " + bytes);
+        if (freedCount[shift] > 0) {
+            return freed[shift][--freedCount[shift]];
+        }
+        long size = 1L << shift;
+        if (carveSlab[shift] < 0 || carveOffset[shift] + size > SLAB_BYTES) {
+            carveSlab[shift] = addSlab(shift);
+            carveOffset[shift] = 0;
+        }
+        long handle = ((long) carveSlab[shift] << 32) | carveOffset[shift];
+        carveOffset[shift] += size;
+        return handle;
+    }
+
+    private int addSlab(int shift) {
+        int n = slabs.length;
+        MemorySegment[] s = Arrays.copyOf(slabs, n + 1);
+        int[] shifts = Arrays.copyOf(slotShift, n + 1);
+        s[n] = arena.allocate(SLAB_BYTES, 8);
+        shifts[n] = shift;
+        slotShift = shifts;
+        slabs = s;
+        return n;
+    }
+
+    /** The slot named by {@code handle}. Fails once the vault is closed. */
+    MemorySegment segment(long handle) {
+        int slab = (int) (handle >>> 32);
+        MemorySegment[] s = slabs;
+        return s[slab].asSlice(handle & 0xFFFFFFFFL, 1L << slotShift[slab]);
+    }
+
+    /** Zero the slot and make it available again. */
+    synchronized void free(long handle) {
+        if (closed) return;
+        // the caller has unpublished the handle; order that before the zeroing a reader may see
+        VarHandle.fullFence();
+        segment(handle).fill((byte) 0);
+        int shift = slotShift[(int) (handle >>> 32)];
+        if (freed[shift] == null) {
+            freed[shift] = new long[16];
+        } else if (freedCount[shift] == freed[shift].length) {
+            freed[shift] = Arrays.copyOf(freed[shift], freedCount[shift] * 2);
+        }
+        freed[shift][freedCount[shift]++] = handle;
+    }
+
+    /**
+     * Call after reading a slot and before re-checking that its handle is still
+     * published, so the re-check cannot be answered before the read.
+     */
+    static void validate() {
+        VarHandle.acquireFence();
+    }
+
+    /**
+     * Call after reading a slot: a read racing the shutdown wipe may have seen
+     * zeros rather than failed, and must not be taken for data.
+     */
+    void checkOpen() {
+        if (closed) throw new IllegalStateException("2FA secrets were wiped at shutdown");
+    }
+
+    /** Zero everything and release the memory. Later reads fail. */
+    synchronized void close() {
+        if (closed) return;
+        closed = true;
+        for (MemorySegment slab : slabs) {
+            slab.fill((byte) 0);
+        }
+        while (true) {
+            try {
+                arena.close();
+                return;
+            } catch (IllegalStateException inUse) {
+                // a reader is inside a bulk copy; those take nanoseconds
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /** Bytes taken by {@link #writeText} for {@code text}. */
+    static int textBytes(String text) {
+        return 2 + utf8Length(text);
+    }
+
+    /** Store a string at {@code offset} as a u16 length and its UTF-8 bytes. */
+    static void writeText(MemorySegment slot, long offset, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) throw new IllegalArgumentException("secret too large");
+        slot.set(LENGTH, offset, (short) bytes.length);
+        MemorySegment.copy(bytes, 0, slot, ValueLayout.JAVA_BYTE, offset + 2, bytes.length);
+        Arrays.fill(bytes, (byte) 0);
+    }
+
+    static String readText(MemorySegment slot, long offset) {
+        byte[] bytes = new byte[slot.get(LENGTH, offset) & 0xFFFF];
+        MemorySegment.copy(slot, ValueLayout.JAVA_BYTE, offset + 2, bytes, 0, bytes.length);
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        Arrays.fill(bytes, (byte) 0);
+        return text;
+    }
+
+    static boolean textEquals(MemorySegment slot, long offset, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        boolean equal = (slot.get(LENGTH, offset) & 0xFFFF) == bytes.length
+                && MemorySegment.mismatch(slot, offset + 2, offset + 2 + bytes.length,
+                        MemorySegment.ofArray(bytes), 0, bytes.length) == -1;
+        Arrays.fill(bytes, (byte) 0);
+        return equal;
+    }
+
+    private static int utf8Length(String text) {
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                n++;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,72 @@
+package ias.dekstop;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write lock on a store file, shared by every process that uses it: an
+ * exclusive {@link FileLock} on a sibling {@code .lock} file. The store file
+ * itself cannot carry the lock, since compaction, rebuilds and imports replace
+ * it. Stores take it around each write, and an import holds it while it
+ * swaps in its copy, so no write lands in a file that is being replaced.
+ * <p>
+ * Within this JVM there is one lock per store file. It is reentrant, and
+ * threads wait for each other here instead of the file lock, which would
+ * throw for a second thread of the same process.
+ */
+final class StoreFileLock {
+
+    private static final ConcurrentHashMap<Path, StoreFileLock> LOCKS = new ConcurrentHashMap<>();
+
+    private final Path lockFile;
+    private final ReentrantLock local = new ReentrantLock();
+    private FileChannel channel;   // kept open; guarded by local
+    private FileLock held;
+
+    private StoreFileLock(Path lockFile) {
+        this.lockFile = lockFile;
+    }
+
+    /** The lock for the store at {@code storeFile}. */
+    static StoreFileLock of(Path storeFile) {
+        Path file = storeFile.toAbsolutePath().normalize();
+        return LOCKS.computeIfAbsent(file, f -> new StoreFileLock(f.resolveSibling(f.getFileName() + ".lock")));
+    }
+
+    /** Wait until no other thread or process holds the lock, then take it. */
+    void lock() throws IOException {
+        local.lock();
+        if (local.getHoldCount() > 1) return;
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            held = channel.lock();
+        } catch (IOException | RuntimeException e) {
+            // an interrupt closes the channel; open a fresh one next time
+            if (channel != null && !channel.isOpen()) channel = null;
+            local.unlock();
+            throw e;
+        }
+    }
+
+    void unlock() {
+        try {
+            if (local.getHoldCount() == 1) {
+                FileLock l = held;
+                held = null;
+                l.release();
+            }
+        } catch (IOException e) {
+            // the lock goes with the channel if it was closed under us
+            TwoFactorStoreStats.INSTANCE.error("unlock store", e);
+        } finally {
+            local.unlock();
+        }
+    }
+}
@@ -1,24 +1,45 @@
 package ias.dekstop;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.nio.ByteBuffer;
-import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Locale;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 /**
  * TOTP (Time-based One-Time Password) - RFC 6238.
  * Pure Java, no external libraries. Uses 30-second step, 6-digit code.
+ * These helpers compile the secret on every call; callers that check the same
+ * secret repeatedly should hold a {@link TotpKey} instead.
  */
 public final class TOTP {
 
-    private static final int TIME_STEP_SECONDS = 30;
-    private static final int CODE_DIGITS = 6;
-    private static final int CLOCK_SKEW_STEPS = 1; // allow ±1 step (30 sec) for clock skew
+    static final int TIME_STEP_SECONDS = 30;
+    static final int CODE_DIGITS = 6;
+    static final int CLOCK_SKEW_STEPS = 1; // allow ±1 step (30 sec) for clock skew
+    static final int MAX_DRIFT_STEPS = 10; // drift learned at login moves at most ±5 minutes
+    static final int RESYNC_WINDOW_STEPS = 24 * 60 * 60 / TIME_STEP_SECONDS; // ±24 hours
+    static final int CODE_MODULUS = 1_000_000; // 10^CODE_DIGITS
+    private static final int SECRET_CHARS = 20;      // 100 bits
+    private static final int SECRET_BYTES = 13;      // enough random bits for SECRET_CHARS
+    private static final int RESEED_INTERVAL_BYTES = 1 << 20;
+
+    // shared so bulk provisioning does not pay generator setup per secret
+    private static final SecureRandom RANDOM = newSecureRandom();
+    private static long randomBytesSinceReseed;
+
+    /** Returned by {@link #matchOffset} when the code is not valid at any checked step. */
+    public static final int NO_MATCH = Integer.MIN_VALUE;
 
     private TOTP() {}
 
+    /** HMAC hash used for the code, as advertised in the otpauth URI. */
+    public enum Algorithm {
+        SHA1, SHA256, SHA512
+    }
+
     /**
      * Generate current 6-digit TOTP code for the given Base32 secret.
      *
@@ -26,10 +47,8 @@ public final class TOTP {
      * @return 6-digit string, or null if invalid secret
      */
     public static String generateCode(String secretBase32) {
-        byte[] secret = decodeBase32(secretBase32);
-        if (secret == null || secret.length == 0) return null;
-        long counter = System.currentTimeMillis() / 1000 / TIME_STEP_SECONDS;
-        return generateCodeForCounter(secret, counter);
+        TotpKey key = TotpKey.fromBase32(secretBase32);
+        return key != null ? key.generateCode() : null;
     }
 
     /**
@@ -41,85 +60,263 @@ public final class TOTP {
      */
     public static boolean verify(String secretBase32, String code) {
         if (secretBase32 == null || code == null || code.length() != CODE_DIGITS) return false;
-        code = code.replaceAll("\\s", "");
-        if (code.length() != CODE_DIGITS) return false;
-        byte[] secret = decodeBase32(secretBase32);
-        if (secret == null || secret.length == 0) return false;
-        long counter = System.currentTimeMillis() / 1000 / TIME_STEP_SECONDS;
-        for (long c = counter - CLOCK_SKEW_STEPS; c <= counter + CLOCK_SKEW_STEPS; c++) {
-            String expected = generateCodeForCounter(secret, c);
-            if (code.equals(expected)) return true;
+        TotpKey key = TotpKey.fromBase32(secretBase32);
+        return key != null && key.verify(code);
+    }
+
+    /**
+     * Verify a 6-digit code for a known account. Same rules as {@link #verify(String, String)},
+     * but the window codes are memoized per account for the current time step, so
+     * repeated attempts within one step skip the HMAC work.
+     *
+     * @param account      account identifier, e.g. normalized email
+     * @param secretBase32 Base32-encoded secret
+     * @param code         6-digit code from user
+     * @return true if code is valid
+     */
+    public static boolean verify(String account, String secretBase32, String code) {
+        if (account == null) return verify(secretBase32, code);
+        return matchOffset(account, secretBase32, code, 0) != NO_MATCH;
+    }
+
+    /**
+     * Verify a 6-digit code for an account whose device clock may drift, and report
+     * at which step offset it matched. The step at {@code expectedDrift} is tried
+     * first; the window covers ±1 step around both the drift and zero.
+     *
+     * @param account       account identifier, e.g. normalized email
+     * @param secretBase32  Base32-encoded secret
+     * @param code          6-digit code from user
+     * @param expectedDrift previously observed offset in steps (0 if unknown)
+     * @return matched offset in steps, or {@link #NO_MATCH}
+     */
+    public static int matchOffset(String account, String secretBase32, String code, int expectedDrift) {
+        int parsed = parseCode(code);
+        if (account == null || secretBase32 == null || parsed < 0) return NO_MATCH;
+        return TotpWindowCache.INSTANCE.match(account, secretBase32, parsed, currentCounter(), expectedDrift);
+    }
+
+    /**
+     * Resynchronize with an authenticator whose clock is badly off. The user enters
+     * two consecutive codes (the second one being what the app shows now); all steps
+     * within ±24 hours are searched in parallel for that pair.
+     *
+     * @param secretBase32 Base32-encoded secret
+     * @param firstCode    earlier of the two codes
+     * @param secondCode   code shown right after it
+     * @param nowMillis    time the second code was entered
+     * @return device clock offset in milliseconds (a multiple of the 30s step), or null if not found
+     */
+    public static Long resync(String secretBase32, String firstCode, String secondCode, long nowMillis) {
+        int first = parseCode(firstCode);
+        int second = parseCode(secondCode);
+        TotpKey key = TotpKey.fromBase32(secretBase32);
+        if (key == null || first < 0 || second < 0) return null;
+        long now = nowMillis / 1000 / TIME_STEP_SECONDS;
+        // candidates are steps c where the second code was shown at c + 1
+        long match = ForkJoinPool.commonPool().invoke(new TotpResync(key, first, second,
+                now - RESYNC_WINDOW_STEPS - 1, now + RESYNC_WINDOW_STEPS, new AtomicBoolean()));
+        if (match == TotpResync.NOT_FOUND) return null;
+        return (match + 1 - now) * TIME_STEP_SECONDS * 1000L;
+    }
+
+    /** One (secret, code, timestamp) tuple for {@link #verifyBatch(Stream)}. */
+    public static final class BatchRequest {
+        final String secretBase32;
+        final String code;
+        final long timestampMillis;
+
+        public BatchRequest(String secretBase32, String code, long timestampMillis) {
+            this.secretBase32 = secretBase32;
+            this.code = code;
+            this.timestampMillis = timestampMillis;
         }
-        return false;
     }
 
-    private static String generateCodeForCounter(byte[] secret, long counter) {
-        try {
-            Mac mac = Mac.getInstance("HmacSHA1");
-            mac.init(new SecretKeySpec(secret, "HmacSHA1"));
-            byte[] counterBytes = ByteBuffer.allocate(8).putLong(counter).array();
-            byte[] hash = mac.doFinal(counterBytes);
-            int offset = hash[hash.length - 1] & 0x0F;
-            int binary = ((hash[offset] & 0x7F) << 24)
-                    | ((hash[offset + 1] & 0xFF) << 16)
-                    | ((hash[offset + 2] & 0xFF) << 8)
-                    | (hash[offset + 3] & 0xFF);
-            int otp = binary % (int) Math.pow(10, CODE_DIGITS);
-            return String.format(Locale.US, "%0" + CODE_DIGITS + "d", otp);
-        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-            return null;
+    /**
+     * Verify many codes at once, each against its own timestamp, using all cores.
+     * Allows ±1 time step for clock skew, like {@link #verify}.
+     *
+     * @param secretBase32s    Base32-encoded secrets
+     * @param codes            6-digit codes, same length as secrets
+     * @param timestampsMillis time each code was entered, same length as secrets
+     * @return bitmap where bit {@code i} (word {@code i >>> 6}) is set if request i is valid
+     */
+    public static long[] verifyBatch(String[] secretBase32s, String[] codes, long[] timestampsMillis) {
+        int n = secretBase32s.length;
+        if (codes.length != n || timestampsMillis.length != n) {
+            throw new IllegalArgumentException("Array lengths differ");
         }
+        long[] result = new long[(n + 63) >>> 6];
+        ForkJoinPool.commonPool().invoke(new TotpBatch(secretBase32s, codes, timestampsMillis, result, 0, n));
+        return result;
     }
 
     /**
-     * Decode Base32 (RFC 4648) - A-Z, 2-7. Case-insensitive, padding optional.
+     * Streaming form of {@link #verifyBatch(String[], String[], long[])}. Requests are
+     * consumed in fixed-size chunks so only one chunk is held at a time.
+     *
+     * @return bitmap where bit {@code i} is set if the i-th request in encounter order is valid
      */
-    static byte[] decodeBase32(String base32) {
-        if (base32 == null) return null;
-        base32 = base32.replaceAll("\\s|-", "").toUpperCase(Locale.US);
-        if (base32.isEmpty()) return null;
-        base32 = base32.replace("=", "");
-        int outLen = (base32.length() * 5 + 7) / 8;
-        byte[] out = new byte[outLen];
-        int buf = 0, bits = 0, outIdx = 0;
-        for (int i = 0; i < base32.length(); i++) {
-            int v = base32CharToValue(base32.charAt(i));
-            if (v < 0) return null;
-            buf = (buf << 5) | v;
-            bits += 5;
-            if (bits >= 8) {
-                bits -= 8;
-                out[outIdx++] = (byte) (buf >> bits);
+    public static long[] verifyBatch(Stream<BatchRequest> requests) {
+        final int chunk = 64 * 1024;
+        String[] secrets = new String[chunk];
+        String[] codes = new String[chunk];
+        long[] timestamps = new long[chunk];
+        long[] result = new long[chunk >>> 6];   // grown by doubling, trimmed at the end
+        int total = 0;
+        Iterator<BatchRequest> it = requests.iterator();
+        while (it.hasNext()) {
+            int n = 0;
+            while (n < chunk && it.hasNext()) {
+                BatchRequest r = it.next();
+                secrets[n] = r.secretBase32;
+                codes[n] = r.code;
+                timestamps[n] = r.timestampMillis;
+                n++;
             }
+            long[] bits = n == chunk
+                    ? verifyBatch(secrets, codes, timestamps)
+                    : verifyBatch(Arrays.copyOf(secrets, n), Arrays.copyOf(codes, n), Arrays.copyOf(timestamps, n));
+            // chunk is a multiple of 64, so each chunk starts on a word boundary
+            int words = (total + n + 63) >>> 6;
+            if (words > result.length) result = Arrays.copyOf(result, Math.max(words, result.length * 2));
+            System.arraycopy(bits, 0, result, total >>> 6, bits.length);
+            total += n;
         }
-        return out;
+        int words = (total + 63) >>> 6;
+        return words == result.length ? result : Arrays.copyOf(result, words);
     }
 
-    private static int base32CharToValue(char c) {
-        if (c >= 'A' && c <= 'Z') return c - 'A';
-        if (c >= '2' && c <= '7') return c - '2' + 26;
-        return -1;
+    static long currentCounter() {
+        return System.currentTimeMillis() / 1000 / TIME_STEP_SECONDS;
+    }
+
+    /**
+     * Parse a user-entered code without allocating. Whitespace is skipped.
+     *
+     * @return the code as an int, or -1 unless it is exactly 6 digits
+     */
+    public static int parseCode(CharSequence code) {
+        if (code == null) return -1;
+        int value = 0, digits = 0;
+        for (int i = 0; i < code.length(); i++) {
+            char ch = code.charAt(i);
+            if (Character.isWhitespace(ch)) continue;
+            if (ch < '0' || ch > '9' || ++digits > CODE_DIGITS) return -1;
+            value = value * 10 + (ch - '0');
+        }
+        return digits == CODE_DIGITS ? value : -1;
+    }
+
+    /** Zero-padded 6-digit form of an int code. */
+    public static String formatCode(int code) {
+        char[] out = new char[CODE_DIGITS];
+        for (int i = CODE_DIGITS - 1; i >= 0; i--) {
+            out[i] = (char) ('0' + code % 10);
+            code /= 10;
+        }
+        return new String(out);
+    }
+
+    /** Branch-free equality: 1 if a == b, else 0. */
+    static int codesEqual(int a, int b) {
+        int d = a ^ b;
+        return ((d | -d) >>> 31) ^ 1;
+    }
+
+    /**
+     * Decode Base32 (RFC 4648) - A-Z, 2-7. Case-insensitive, padding optional.
+     */
+    static byte[] decodeBase32(String base32) {
+        return Base32.decode(base32);
     }
 
     /**
      * Generate a random Base32 secret (e.g. for new 2FA setup). 20 chars = 100 bits.
      */
     public static String generateSecret() {
-        String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
-        StringBuilder sb = new StringBuilder(20);
-        java.security.SecureRandom r = new java.security.SecureRandom();
-        for (int i = 0; i < 20; i++) sb.append(chars.charAt(r.nextInt(chars.length())));
-        return sb.toString();
+        return generateSecrets(1)[0];
+    }
+
+    /**
+     * Generate {@code count} random Base32 secrets. The key material for all of them
+     * is drawn from the shared generator in a single call.
+     */
+    public static String[] generateSecrets(int count) {
+        byte[] random = new byte[count * SECRET_BYTES];
+        nextRandomBytes(random);
+        char[] chars = new char[Base32.encodedLength(SECRET_BYTES)];
+        String[] secrets = new String[count];
+        for (int i = 0; i < count; i++) {
+            Base32.encode(random, i * SECRET_BYTES, SECRET_BYTES, chars, 0);
+            secrets[i] = new String(chars, 0, SECRET_CHARS);
+        }
+        Arrays.fill(random, (byte) 0);
+        Arrays.fill(chars, '\0');
+        return secrets;
+    }
+
+    private static synchronized void nextRandomBytes(byte[] out) {
+        RANDOM.nextBytes(out);
+        randomBytesSinceReseed += out.length;
+        if (randomBytesSinceReseed >= RESEED_INTERVAL_BYTES) {
+            randomBytesSinceReseed = 0;
+            try {
+                RANDOM.reseed();
+            } catch (UnsupportedOperationException ignored) {
+                // non-DRBG providers reseed themselves from the OS
+            }
+        }
+    }
+
+    private static SecureRandom newSecureRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
     }
 
     /**
      * Build otpauth URI for QR code / manual entry (e.g. Google Authenticator).
      */
     public static String getOtpAuthUri(String secret, String accountName, String issuer) {
-        return String.format("otpauth://totp/%s:%s?secret=%s&issuer=%s&algorithm=SHA1&digits=6&period=30",
-                issuer != null ? issuer : "IAS",
-                accountName != null ? accountName : "user",
-                secret,
-                issuer != null ? issuer : "IAS");
+        return getOtpAuthUri(secret, accountName, issuer, Algorithm.SHA1);
+    }
+
+    /**
+     * Build otpauth URI advertising the given HMAC algorithm. The authenticator
+     * app must support it; SHA1 is the only one every app understands.
+     */
+    public static String getOtpAuthUri(String secret, String accountName, String issuer, Algorithm algorithm) {
+        StringBuilder sb = otpAuthPrefix(accountName, issuer);
+        sb.append(secret);
+        return otpAuthSuffix(sb, issuer, algorithm);
+    }
+
+    /**
+     * Build otpauth URI straight from raw key bytes, Base32-encoding them in place.
+     */
+    public static String getOtpAuthUri(byte[] secret, String accountName, String issuer, Algorithm algorithm) {
+        StringBuilder sb = otpAuthPrefix(accountName, issuer);
+        Base32.encode(secret, sb);
+        return otpAuthSuffix(sb, issuer, algorithm);
+    }
+
+    private static StringBuilder otpAuthPrefix(String accountName, String issuer) {
+        StringBuilder sb = new StringBuilder(128);
+        return sb.append("otpauth://totp/")
+                .append(issuer != null ? issuer : "IAS").append(':')
+                .append(accountName != null ? accountName : "user")
+                .append("?secret=");
+    }
+
+    private static String otpAuthSuffix(StringBuilder sb, String issuer, Algorithm algorithm) {
+        return sb.append("&issuer=").append(issuer != null ? issuer : "IAS")
+                .append("&algorithm=").append(algorithm != null ? algorithm.name() : Algorithm.SHA1.name())
+                .append("&digits=").append(CODE_DIGITS)
+                .append("&period=").append(TIME_STEP_SECONDS)
+                .toString();
     }
 }
@@ -0,0 +1,324 @@
+package ias.dekstop;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.ref.Cleaner;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Default text store: the whole journal is replayed into memory on open.
+ * Each line is {@code email|secret} with an optional {@code |drift} holding the
+ * device's observed clock offset in TOTP steps.
+ * <p>
+ * The file is an append-only journal (see {@link TwoFactorJournal}): every change
+ * appends one line, later lines win, and {@code email|} with an empty secret
+ * removes an account. Once most lines are dead the file is compacted in the
+ * background, so a save costs O(1) I/O however many accounts are stored.
+ * <p>
+ * Accounts are held as immutable entries in a {@link ConcurrentHashMap}, so
+ * lookups never take the lock that writers hold while appending to disk.
+ * Secrets themselves live off-heap in the {@link SecretVault}, zeroed when an
+ * account is removed or re-keyed, when the store is dropped and at shutdown.
+ * Each slot holds the compiled HMAC key next to the Base32 text, so
+ * {@link #matchOffset} computes codes straight from it; only
+ * {@link #getSecret} copies a secret onto the heap. Reads retry if the entry
+ * was replaced while they ran, and throw once the vault was wiped.
+ * With write-behind enabled a save does not touch the disk at all; the
+ * journal writer catches up in the background.
+ * {@link #refresh} reads only what other processes appended since the last look.
+ * <p>
+ * Given {@link Removals}, the store holds opaque records sealed by the layer
+ * above (see {@link EncryptedSecretStore}): values are kept as given on the
+ * heap, with no key compiled and no vault slot, and only removal lines that
+ * {@link Removals} vouches for remove an account.
+ */
+final class TextSecretStore implements SecretStore {
+
+    // compact once more than half of the journal is overwritten records
+    private static final double COMPACT_DEAD_RATIO = 0.5;
+    private static final int COMPACT_MIN_RECORDS = 64;
+
+    // slot layout: HMAC key states, then the secret as text
+    private static final int STATE_BYTES = CounterHmac.stateBytes(TOTP.Algorithm.SHA1);
+    private static final SecretVault vault = SecretVault.INSTANCE;
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "2fa-store-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Map<String, Entry> accounts = new ConcurrentHashMap<>();
+    private final TwoFactorJournal journal;
+    private final Removals removals;      // null unless records are opaque
+    private boolean compacting = false;   // guarded by this
+
+    private static final class Entry {
+        final long secret;   // vault slot holding the key states and the Base32 secret; -1 if opaque
+        final TotpKey key;   // reads its key states from the slot; null if the secret is not Base32
+        final String record; // the value as given if opaque, else null
+        final int drift;
+
+        Entry(long secret, TotpKey key, String record, int drift) {
+            this.secret = secret;
+            this.key = key;
+            this.record = record;
+            this.drift = drift;
+        }
+    }
+
+    /** Authenticated removal lines for a store of opaque records. */
+    interface Removals {
+        /** The value written in place of a secret to remove {@code email}. */
+        String removal(String email);
+
+        /** Whether {@code value} read for {@code email} is a removal made by {@link #removal}. */
+        boolean isRemoval(String email, String value);
+    }
+
+    TextSecretStore(Path file) {
+        this(file, false, TwoFactorJournal.Durability.BATCH);
+    }
+
+    /**
+     * @param writeBehind queue changes and let a background thread write them,
+     *                    coalescing repeated changes to the same account
+     * @param durability  when written changes are forced to disk
+     */
+    TextSecretStore(Path file, boolean writeBehind, TwoFactorJournal.Durability durability) {
+        this(file, writeBehind, durability, null);
+    }
+
+    /**
+     * @param removals if not null, values are opaque records and only removal
+     *                 lines it accepts remove an account; a bare {@code email|}
+     *                 is ignored
+     */
+    TextSecretStore(Path file, boolean writeBehind, TwoFactorJournal.Durability durability, Removals removals) {
+        this.removals = removals;
+        journal = new TwoFactorJournal(file, writeBehind, durability);
+        try {
+            journal.replay(line -> applyLine(accounts, line));
+        } catch (IOException e) {
+            TwoFactorStoreStats.INSTANCE.error("load journal", e);
+        }
+        // wipe the secrets of a store nobody uses any more, rather than at shutdown
+        Map<String, Entry> held = accounts;
+        cleaner.register(this, () -> held.values().forEach(TextSecretStore::free));
+    }
+
+    private Entry newEntry(String secret, int drift) {
+        if (removals != null) return new Entry(-1, null, secret, drift);
+        long slot = vault.allocate(STATE_BYTES + SecretVault.textBytes(secret));
+        MemorySegment segment = vault.segment(slot);
+        TotpKey key = TotpKey.fromBase32(secret, TOTP.Algorithm.SHA1, segment.asSlice(0, STATE_BYTES));
+        SecretVault.writeText(segment, STATE_BYTES, secret);
+        return new Entry(slot, key, null, drift);
+    }
+
+    private static void free(Entry e) {
+        if (e.secret >= 0) vault.free(e.secret);
+    }
+
+    private String secretOf(Entry e) {
+        if (e.record != null) return e.record;
+        return SecretVault.readText(vault.segment(e.secret), STATE_BYTES);
+    }
+
+    /** Put {@code e} in {@code map}, or remove the account if null, and wipe the secret it replaces. */
+    private void set(Map<String, Entry> map, String email, Entry e) {
+        Entry old = e != null ? map.put(email, e) : map.remove(email);
+        if (old != null) free(old);
+    }
+
+    private void applyLine(Map<String, Entry> accounts, String line) {
+        String[] parts = line.split("\\|", 3);
+        if (parts.length < 2) return;
+        String email = parts[0].trim();
+        String secret = parts[1].trim();
+        if (email.isEmpty()) return;
+        if (secret.isEmpty()) {
+            if (removals == null) set(accounts, email, null);
+            return;
+        }
+        if (removals != null && removals.isRemoval(email, secret)) {
+            set(accounts, email, null);
+            return;
+        }
+        int drift = 0;
+        if (parts.length == 3) {
+            try {
+                drift = Integer.parseInt(parts[2].trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        set(accounts, email, newEntry(secret, drift));
+    }
+
+    private String formatLine(String email, Entry e) {
+        if (e == null) return email + "|" + (removals != null ? removals.removal(email) : "");
+        return formatLine(email, secretOf(e), e.drift);
+    }
+
+    /** One journal line setting {@code email} to {@code secret} and {@code drift}. */
+    static String formatLine(String email, String secret, int drift) {
+        return email + "|" + secret + (drift != 0 ? "|" + drift : "");
+    }
+
+    @Override
+    public String getSecret(String email) {
+        while (true) {
+            Entry e = accounts.get(email);
+            if (e == null) return null;
+            if (e.record != null) return e.record;
+            String secret = null;
+            RuntimeException failed = null;
+            try {
+                secret = secretOf(e);
+            } catch (RuntimeException raced) {
+                // the slot was freed and reused while we read it, or wiped at shutdown
+                failed = raced;
+            }
+            SecretVault.validate();
+            vault.checkOpen();
+            if (accounts.get(email) == e) {
+                if (failed != null) throw failed;
+                return secret;
+            }
+        }
+    }
+
+    /** Computes codes from the key in the account's vault slot; the secret is never copied out. */
+    @Override
+    public int matchOffset(String email, int code, long step, int drift) {
+        while (true) {
+            Entry e = accounts.get(email);
+            if (e == null || e.key == null) return TOTP.NO_MATCH;
+            int offset = TotpWindowCache.INSTANCE.match(email, e.key, code, step, drift);
+            SecretVault.validate();
+            vault.checkOpen();
+            if (accounts.get(email) == e) return offset;
+            // re-keyed meanwhile, so the slot may already hold another key: drop those codes
+            TotpWindowCache.INSTANCE.forget(email);
+        }
+    }
+
+    @Override
+    public boolean contains(String email) {
+        return accounts.containsKey(email);
+    }
+
+    @Override
+    public int getDrift(String email) {
+        Entry e = accounts.get(email);
+        return e != null ? e.drift : 0;
+    }
+
+    @Override
+    public synchronized void put(String email, String secret, int drift) {
+        set(accounts, email, newEntry(secret, drift));
+        persist(email, formatLine(email, secret, drift));
+    }
+
+    /** Keeps the entry's vault slot; only the drift and the journal line are new. */
+    @Override
+    public synchronized void putDrift(String email, int drift) {
+        Entry e = accounts.get(email);
+        if (e == null || e.drift == drift) return;
+        Entry moved = new Entry(e.secret, e.key, e.record, drift);
+        accounts.put(email, moved);
+        persist(email, formatLine(email, moved));
+    }
+
+    @Override
+    public synchronized void remove(String email) {
+        if (!accounts.containsKey(email)) return;
+        set(accounts, email, null);
+        persist(email, formatLine(email, null));
+    }
+
+    @Override
+    public int size() {
+        return accounts.size();
+    }
+
+    @Override
+    public synchronized void forEach(Visitor visitor) throws IOException {
+        for (Map.Entry<String, Entry> e : accounts.entrySet()) {
+            visitor.visit(e.getKey(), secretOf(e.getValue()), e.getValue().drift);
+        }
+    }
+
+    /**
+     * Apply lines other processes appended to the journal. If the file was
+     * replaced instead (compacted or rewritten elsewhere) it is replayed into a
+     * fresh map and the differences are applied, so readers never see it empty.
+     */
+    @Override
+    public synchronized void refresh() {
+        try {
+            if (journal.readAppended(line -> applyLine(accounts, line))) return;
+            Map<String, Entry> fresh = new HashMap<>();
+            try {
+                journal.replay(line -> applyLine(fresh, line));
+            } catch (IOException e) {
+                fresh.values().forEach(TextSecretStore::free);
+                throw e;
+            }
+            for (String email : accounts.keySet()) {
+                if (!fresh.containsKey(email)) set(accounts, email, null);
+            }
+            fresh.forEach((email, e) -> set(accounts, email, e));
+        } catch (IOException e) {
+            TwoFactorStoreStats.INSTANCE.error("refresh journal", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    /** Append the new state of one account to the journal. */
+    private void persist(String email, String line) {
+        try {
+            journal.append(email, line);
+        } catch (IOException e) {
+            TwoFactorStoreStats.INSTANCE.error("write journal", e);
+        }
+        if (!compacting && journal.needsCompaction(accounts.size(), COMPACT_DEAD_RATIO, COMPACT_MIN_RECORDS)) {
+            compacting = true;
+            compactor.execute(this::compact);
+        }
+    }
+
+    private void compact() {
+        List<String> lines;
+        long mark;
+        synchronized (this) {
+            refresh();
+            lines = new ArrayList<>(accounts.size());
+            for (Map.Entry<String, Entry> e : accounts.entrySet()) {
+                lines.add(formatLine(e.getKey(), e.getValue()));
+            }
+            mark = journal.position();
+        }
+        try {
+            journal.compact(lines, mark);
+        } catch (IOException e) {
+            TwoFactorStoreStats.INSTANCE.error("compact journal", e);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+}
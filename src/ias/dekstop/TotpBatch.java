@@ -0,0 +1,62 @@
+package ias.dekstop;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork-join task behind {@link TOTP#verifyBatch}. Splits only on multiples of
+ * 64 so every leaf owns whole words of the result bitmap and writes them
+ * without synchronization.
+ */
+@SuppressWarnings("serial") // never serialized
+final class TotpBatch extends RecursiveAction {
+
+    private static final int LEAF_SIZE = 1024; // multiple of 64
+
+    private final String[] secrets;
+    private final String[] codes;
+    private final long[] timestampsMillis;
+    private final long[] result;
+    private final int from;
+    private final int to;
+
+    TotpBatch(String[] secrets, String[] codes, long[] timestampsMillis, long[] result, int from, int to) {
+        this.secrets = secrets;
+        this.codes = codes;
+        this.timestampsMillis = timestampsMillis;
+        this.result = result;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= LEAF_SIZE) {
+            verifyRange();
+            return;
+        }
+        int mid = from + (((to - from) >>> 1) & ~63);
+        invokeAll(new TotpBatch(secrets, codes, timestampsMillis, result, from, mid),
+                new TotpBatch(secrets, codes, timestampsMillis, result, mid, to));
+    }
+
+    private void verifyRange() {
+        TotpKey.Scratch scratch = new TotpKey.Scratch();
+        // Replayed logs tend to repeat the same account back to back
+        String lastSecret = null;
+        TotpKey key = null;
+        for (int i = from; i < to; i++) {
+            String secret = secrets[i];
+            if (secret == null) continue;
+            if (!secret.equals(lastSecret)) {
+                key = TotpKey.fromBase32(secret);
+                lastSecret = secret;
+            }
+            int code = TOTP.parseCode(codes[i]);
+            if (key == null || code < 0) continue;
+            long counter = timestampsMillis[i] / 1000 / TOTP.TIME_STEP_SECONDS;
+            if (key.verify(code, counter, scratch)) {
+                result[i >>> 6] |= 1L << i;
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package ias.dekstop;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+
+/**
+ * Precompiled TOTP secret. Decodes the Base32 secret once and caches the HMAC
+ * inner/outer key states (see {@link CounterHmac}), so generating or verifying
+ * a code does no Base32 parsing, no JCA provider lookup and no key setup.
+ * Build one per account and reuse it; instances are safe to share between threads.
+ * <p>
+ * The int-based methods take a {@link Scratch} owned by the calling thread and
+ * allocate nothing themselves; the String-based methods are convenience wrappers.
+ */
+public final class TotpKey {
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final TOTP.Algorithm algorithm;
+    private final CounterHmac hmac;
+
+    private TotpKey(byte[] secret, TOTP.Algorithm algorithm, MemorySegment keyState) {
+        this.algorithm = algorithm;
+        this.hmac = keyState != null
+                ? CounterHmac.create(algorithm, secret, keyState)
+                : CounterHmac.create(algorithm, secret);
+    }
+
+    /**
+     * Per-thread working buffers for the int-based API. Not thread-safe;
+     * keep one per worker thread and pass it to every call.
+     */
+    public static final class Scratch {
+        final int[] state = new int[8];
+        final int[] w = new int[80];
+        final long[] state64 = new long[8];
+        final long[] w64 = new long[80];
+    }
+
+    /**
+     * Compile a Base32 secret into a reusable key.
+     *
+     * @param secretBase32 Base32-encoded secret (e.g. from backend or QR)
+     * @return compiled key, or null if the secret is invalid
+     */
+    public static TotpKey fromBase32(String secretBase32) {
+        return fromBase32(secretBase32, TOTP.Algorithm.SHA1);
+    }
+
+    /**
+     * Compile a Base32 secret for the given HMAC algorithm.
+     *
+     * @return compiled key, or null if the secret is invalid
+     */
+    public static TotpKey fromBase32(String secretBase32, TOTP.Algorithm algorithm) {
+        return fromBase32(secretBase32, algorithm, null);
+    }
+
+    /**
+     * Compile a Base32 secret with its key states kept in {@code keyState}
+     * (at least {@link CounterHmac#stateBytes} bytes, e.g. a {@link SecretVault}
+     * slot) instead of on the heap.
+     *
+     * @return compiled key, or null if the secret is invalid
+     */
+    static TotpKey fromBase32(String secretBase32, TOTP.Algorithm algorithm, MemorySegment keyState) {
+        byte[] secret = TOTP.decodeBase32(secretBase32);
+        if (secret == null || secret.length == 0 || algorithm == null) return null;
+        TotpKey key = new TotpKey(secret, algorithm, keyState);
+        Arrays.fill(secret, (byte) 0);
+        return key;
+    }
+
+    public TOTP.Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Generate the current 6-digit code.
+     */
+    public String generateCode() {
+        return TOTP.formatCode(generate(TOTP.currentCounter(), SCRATCH.get()));
+    }
+
+    /**
+     * Verify a 6-digit code against this key. Allows ±1 time step for clock skew.
+     *
+     * @param code 6-digit code from user
+     * @return true if code is valid
+     */
+    public boolean verify(String code) {
+        int parsed = TOTP.parseCode(code);
+        return parsed >= 0 && verify(parsed, TOTP.currentCounter(), SCRATCH.get());
+    }
+
+    /**
+     * Verify a parsed code against the ±1 step window around {@code counter}.
+     * Every step in the window is computed and compared, so the time taken
+     * does not depend on which step (if any) matched.
+     *
+     * @param code    code from {@link TOTP#parseCode}; negative values never match
+     * @param counter time step to centre the window on
+     * @param scratch caller-owned buffers
+     * @return true if code is valid
+     */
+    public boolean verify(int code, long counter, Scratch scratch) {
+        int match = 0;
+        for (long c = counter - TOTP.CLOCK_SKEW_STEPS; c <= counter + TOTP.CLOCK_SKEW_STEPS; c++) {
+            match |= TOTP.codesEqual(generate(c, scratch), code);
+        }
+        return match != 0;
+    }
+
+    /**
+     * Generate the code for a time step as an int in [0, 10^6).
+     *
+     * @param counter time step (Unix seconds / 30)
+     * @param scratch caller-owned buffers
+     */
+    public int generate(long counter, Scratch scratch) {
+        return hmac.code(counter, scratch);
+    }
+
+    String generateCodeForCounter(long counter) {
+        return TOTP.formatCode(generate(counter, SCRATCH.get()));
+    }
+}
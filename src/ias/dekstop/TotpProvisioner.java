@@ -0,0 +1,172 @@
+package ias.dekstop;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk 2FA provisioning for onboarding many accounts at once.
+ * <p>
+ * Accounts are read in batches. For each batch the random key material is drawn
+ * in one call from the shared generator and Base32-encoded in one pass (calling
+ * thread); otpauth URIs and QR PNGs are then built on a worker pool, and the
+ * manifest is written in input order as batches complete. At most a few batches
+ * are in flight, so memory stays bounded however many accounts are provisioned.
+ * <p>
+ * Output: {@code manifest.csv} ({@code email,secret,otpauth-uri,qr-file}) and a
+ * {@code qr/} directory with one PNG per account. Both hold the secrets in the
+ * clear, so the directories and files are made readable by the owner only.
+ * Usage: {@code TotpProvisioner <emails.txt> <output-dir> [issuer]}
+ */
+public final class TotpProvisioner {
+
+    private static final int BATCH_SIZE = 512;
+    private static final Set<PosixFilePermission> OWNER_DIR = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_FILE = PosixFilePermissions.fromString("rw-------");
+
+    private final File outputDir;
+    private final String issuer;
+    private final int workers;
+
+    public TotpProvisioner(File outputDir, String issuer) {
+        this.outputDir = outputDir;
+        this.issuer = issuer != null ? issuer : "IAS";
+        this.workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Provision every account produced by {@code emails}.
+     *
+     * @return number of accounts written
+     */
+    public long provision(Iterator<String> emails) throws IOException {
+        File qrDir = new File(outputDir, "qr");
+        createPrivateDirectory(outputDir.toPath());
+        createPrivateDirectory(qrDir.toPath());
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "totp-provisioner");
+            t.setDaemon(true);
+            return t;
+        });
+        ArrayDeque<Future<List<String>>> inFlight = new ArrayDeque<>();
+        long count = 0;
+        try (Writer manifest = new BufferedWriter(new OutputStreamWriter(
+                newPrivateFile(new File(outputDir, "manifest.csv").toPath()), StandardCharsets.UTF_8))) {
+            manifest.write("email,secret,otpauth_uri,qr_file\n");
+            while (emails.hasNext()) {
+                List<String> batch = new ArrayList<>(BATCH_SIZE);
+                while (batch.size() < BATCH_SIZE && emails.hasNext()) {
+                    String email = emails.next().trim();
+                    if (!email.isEmpty()) batch.add(email);
+                }
+                if (batch.isEmpty()) continue;
+                String[] secrets = TOTP.generateSecrets(batch.size());
+                long firstIndex = count;
+                inFlight.add(pool.submit(() -> renderBatch(batch, secrets, firstIndex, qrDir)));
+                count += batch.size();
+                if (inFlight.size() >= workers * 2) {
+                    writeLines(manifest, inFlight.poll());
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                writeLines(manifest, inFlight.poll());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return count;
+    }
+
+    private List<String> renderBatch(List<String> emails, String[] secrets, long firstIndex, File qrDir)
+            throws IOException {
+        List<String> lines = new ArrayList<>(emails.size());
+        for (int i = 0; i < emails.size(); i++) {
+            String email = emails.get(i);
+            String uri = TOTP.getOtpAuthUri(secrets[i], email, issuer);
+            String qrName = (firstIndex + i) + ".png";
+            BufferedImage qr = QRCodeHelper.generateQR(uri);
+            if (qr == null || !writePng(qr, new File(qrDir, qrName).toPath())) {
+                qrName = "";
+            }
+            lines.add(csv(email) + "," + secrets[i] + "," + csv(uri) + "," + qrName + "\n");
+        }
+        return lines;
+    }
+
+    private static boolean writePng(BufferedImage image, Path file) throws IOException {
+        boolean written;
+        try (OutputStream out = new BufferedOutputStream(newPrivateFile(file))) {
+            written = ImageIO.write(image, "png", out);
+        }
+        if (!written) Files.delete(file);
+        return written;
+    }
+
+    /** Create {@code dir} if needed and make it owner-only. */
+    private static void createPrivateDirectory(Path dir) throws IOException {
+        try {
+            Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(OWNER_DIR));
+            Files.setPosixFilePermissions(dir, OWNER_DIR);
+        } catch (UnsupportedOperationException notPosix) {
+            Files.createDirectories(dir);
+        }
+    }
+
+    /** Open {@code file} to be written from scratch, owner-only before anything is written to it. */
+    private static OutputStream newPrivateFile(Path file) throws IOException {
+        try {
+            if (Files.exists(file)) Files.setPosixFilePermissions(file, OWNER_FILE);
+            else Files.createFile(file, PosixFilePermissions.asFileAttribute(OWNER_FILE));
+        } catch (UnsupportedOperationException notPosix) {
+            // permissions are the platform's default
+        }
+        return Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    private static void writeLines(Writer out, Future<List<String>> batch) throws IOException {
+        try {
+            for (String line : batch.get()) {
+                out.write(line);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: TotpProvisioner <emails.txt> <output-dir> [issuer]");
+            System.exit(2);
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(args[0]), StandardCharsets.UTF_8))) {
+            long n = new TotpProvisioner(new File(args[1]), args.length > 2 ? args[2] : null)
+                    .provision(in.lines().iterator());
+            System.out.println("Provisioned " + n + " accounts into " + args[1]);
+        }
+    }
+}
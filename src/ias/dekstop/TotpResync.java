@@ -0,0 +1,63 @@
+package ias.dekstop;
+
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fork-join search behind {@link TOTP#resync}: finds the step {@code c} with
+ * code(c) == first and code(c + 1) == second over a range of counters.
+ * Each leaf walks its counters in order and carries the previous code forward,
+ * so every counter costs one HMAC. Leaves stop early once any leaf has a match.
+ */
+@SuppressWarnings("serial") // never serialized
+final class TotpResync extends RecursiveTask<Long> {
+
+    static final long NOT_FOUND = Long.MIN_VALUE;
+
+    private static final int LEAF_STEPS = 256;
+
+    private final TotpKey key;
+    private final int first;
+    private final int second;
+    private final long from;   // inclusive, candidate step for the first code
+    private final long to;     // exclusive
+    private final AtomicBoolean found;
+
+    TotpResync(TotpKey key, int first, int second, long from, long to, AtomicBoolean found) {
+        this.key = key;
+        this.first = first;
+        this.second = second;
+        this.from = from;
+        this.to = to;
+        this.found = found;
+    }
+
+    @Override
+    protected Long compute() {
+        if (to - from <= LEAF_STEPS) {
+            return scan();
+        }
+        long mid = (from + to) >>> 1;
+        TotpResync left = new TotpResync(key, first, second, from, mid, found);
+        TotpResync right = new TotpResync(key, first, second, mid, to, found);
+        right.fork();
+        long l = left.compute();
+        long r = right.join();
+        return l != NOT_FOUND ? l : r;
+    }
+
+    private long scan() {
+        TotpKey.Scratch scratch = new TotpKey.Scratch();
+        int prev = key.generate(from, scratch);
+        for (long c = from; c < to; c++) {
+            if (found.get()) return NOT_FOUND;
+            int next = key.generate(c + 1, scratch);
+            if (prev == first && next == second) {
+                found.set(true);
+                return c;
+            }
+            prev = next;
+        }
+        return NOT_FOUND;
+    }
+}
@@ -174,7 +174,7 @@ public class TotpSetupDialog extends JDialog {
         }
         boolean ok = confirmTotpWithBackend(code);
         if (!ok) {
-            ok = TOTP.verify(secret, code);
+            ok = TOTP.verify(userEmail, secret, code);
         }
         if (ok) {
             // Mark 2FA as enabled locally for this email
@@ -0,0 +1,194 @@
+package ias.dekstop;
+
+import java.lang.foreign.MemorySegment;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded per-account memo of the codes around the current time step.
+ * Retries and double-submits within one 30-second step reuse the codes already
+ * computed; when the step advances, codes still inside the new window are
+ * shifted over and the rest are dropped, so nothing outlives its step.
+ * Codes are computed lazily, most likely step first, so an account whose
+ * learned drift is right usually costs a single HMAC.
+ * <p>
+ * Each account's compiled key and its Base32 secret sit in a {@link SecretVault}
+ * slot rather than on the heap; the slot is zeroed when the account is
+ * evicted, re-keyed or {@link #forget forgotten}. A store that keeps compiled
+ * keys itself passes them in instead, and the memo only borrows them.
+ * <p>
+ * Accounts are split by hash over independently locked stripes, each with its
+ * own scratch, so verifies for different accounts rarely wait on each other.
+ */
+final class TotpWindowCache {
+
+    private static final int MAX_ACCOUNTS = 1024;
+    private static final int STRIPES = 16;             // power of two
+    // widest offset ever checked: learned drift plus the usual skew
+    private static final int RADIUS = TOTP.MAX_DRIFT_STEPS + TOTP.CLOCK_SKEW_STEPS;
+    private static final int WINDOW = 2 * RADIUS + 1;
+
+    // slot layout: HMAC key states, then the secret as text
+    private static final int STATE_BYTES = CounterHmac.stateBytes(TOTP.Algorithm.SHA1);
+
+    static final TotpWindowCache INSTANCE = new TotpWindowCache();
+
+    private final SecretVault vault = SecretVault.INSTANCE;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private TotpWindowCache() {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+    /** One lock's share of the accounts, least recently used first. */
+    private final class Stripe {
+        final TotpKey.Scratch scratch = new TotpKey.Scratch();
+        final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= MAX_ACCOUNTS / STRIPES) return false;
+                free(eldest.getValue());
+                return true;
+            }
+        };
+
+        void forget(String account) {
+            Entry e = entries.remove(account);
+            if (e != null) free(e);
+        }
+    }
+
+    private Stripe stripe(String account) {
+        int h = account.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static final class Entry {
+        final long slot;               // -1 if the key is borrowed from a store
+        final TotpKey key;
+        final int[] codes = new int[WINDOW];
+        int valid;                     // bit i set once codes[i] is computed
+        long step = Long.MIN_VALUE;    // window is step-RADIUS .. step+RADIUS
+
+        Entry(long slot, TotpKey key) {
+            this.slot = slot;
+            this.key = key;
+        }
+
+        void advanceTo(long newStep) {
+            long delta = newStep - step;
+            if (delta == 0) return;
+            if (delta > 0 && delta < WINDOW) {
+                int d = (int) delta;
+                System.arraycopy(codes, d, codes, 0, WINDOW - d);
+                valid >>>= d;
+            } else if (delta < 0 && delta > -WINDOW) {
+                int d = (int) -delta;
+                System.arraycopy(codes, 0, codes, d, WINDOW - d);
+                valid = (valid << d) & ((1 << WINDOW) - 1);
+            } else {
+                valid = 0;
+            }
+            step = newStep;
+        }
+
+        int codeAt(int offset, TotpKey.Scratch scratch) {
+            int index = offset + RADIUS;
+            if ((valid & (1 << index)) == 0) {
+                codes[index] = key.generate(step + offset, scratch);
+                valid |= 1 << index;
+            }
+            return codes[index];
+        }
+    }
+
+    /**
+     * Find the step offset at which a parsed code is valid for an account.
+     * The window is ±1 step around both zero and the account's learned drift,
+     * and nothing in between: the steps around the drift are tried first,
+     * nearest first, then those around zero.
+     *
+     * @param drift learned offset in steps
+     * @return matching offset, or {@link TOTP#NO_MATCH}
+     */
+    int match(String account, String secretBase32, int code, long step, int drift) {
+        Stripe st = stripe(account);
+        synchronized (st) {
+            Entry e = st.entries.get(account);
+            if (e == null || e.slot < 0 || !SecretVault.textEquals(vault.segment(e.slot), STATE_BYTES, secretBase32)) {
+                st.forget(account);
+                e = compile(secretBase32);
+                if (e == null) return TOTP.NO_MATCH;
+                st.entries.put(account, e);
+            }
+            return match(e, code, step, drift, st.scratch);
+        }
+    }
+
+    /**
+     * Same as {@link #match(String, String, int, long, int)} for a key the
+     * caller compiled and keeps. Codes are memoized while the same key object
+     * is passed for the account.
+     */
+    int match(String account, TotpKey key, int code, long step, int drift) {
+        Stripe st = stripe(account);
+        synchronized (st) {
+            Entry e = st.entries.get(account);
+            if (e == null || e.key != key) {
+                st.forget(account);
+                e = new Entry(-1, key);
+                st.entries.put(account, e);
+            }
+            return match(e, code, step, drift, st.scratch);
+        }
+    }
+
+    private static int match(Entry e, int code, long step, int drift, TotpKey.Scratch scratch) {
+        e.advanceTo(step);
+        if (Math.abs(drift) > TOTP.MAX_DRIFT_STEPS) {
+            // offset set by a resync lies outside the memo; check it directly, then fall back to zero
+            for (int offset = drift - TOTP.CLOCK_SKEW_STEPS; offset <= drift + TOTP.CLOCK_SKEW_STEPS; offset++) {
+                if (TOTP.codesEqual(e.key.generate(step + offset, scratch), code) != 0) return offset;
+            }
+            drift = 0;
+        }
+        for (int d = 0; d <= TOTP.CLOCK_SKEW_STEPS; d++) {
+            if (matches(e, drift - d, code, scratch)) return drift - d;
+            if (d > 0 && matches(e, drift + d, code, scratch)) return drift + d;
+        }
+        // the device's clock may have been fixed since; skip what the drift's window covered
+        for (int d = 0; d <= TOTP.CLOCK_SKEW_STEPS; d++) {
+            if (Math.abs(drift + d) > TOTP.CLOCK_SKEW_STEPS && matches(e, -d, code, scratch)) return -d;
+            if (d > 0 && Math.abs(d - drift) > TOTP.CLOCK_SKEW_STEPS && matches(e, d, code, scratch)) return d;
+        }
+        return TOTP.NO_MATCH;
+    }
+
+    private static boolean matches(Entry e, int offset, int code, TotpKey.Scratch scratch) {
+        return TOTP.codesEqual(e.codeAt(offset, scratch), code) != 0;
+    }
+
+    private Entry compile(String secretBase32) {
+        long slot = vault.allocate(STATE_BYTES + SecretVault.textBytes(secretBase32));
+        MemorySegment segment = vault.segment(slot);
+        TotpKey key = TotpKey.fromBase32(secretBase32, TOTP.Algorithm.SHA1, segment.asSlice(0, STATE_BYTES));
+        if (key == null) {
+            vault.free(slot);
+            return null;
+        }
+        SecretVault.writeText(segment, STATE_BYTES, secretBase32);
+        return new Entry(slot, key);
+    }
+
+    /** Drop an account's key and codes, zeroing its slot. */
+    void forget(String account) {
+        Stripe st = stripe(account);
+        synchronized (st) {
+            st.forget(account);
+        }
+    }
+
+    private void free(Entry e) {
+        if (e.slot >= 0) vault.free(e.slot);
+    }
+}
@@ -0,0 +1,440 @@
+package ias.dekstop;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Append-only line journal backing {@link TwoFactorStore}. Each change is one
+ * appended line; readers replay the file in order and later lines win.
+ * {@link #compact} rewrites the file with only live lines, atomically, while
+ * appends continue: lines appended after the snapshot are carried over before
+ * the new file replaces the old one.
+ * <p>
+ * In write-behind mode {@link #append} only queues the line and returns; a
+ * background writer drains the queue in batches, keeping just the latest
+ * line per key, so a burst of changes costs one write. When the data is
+ * forced to disk is set by {@link Durability}. A shutdown hook flushes
+ * whatever is still queued. {@link #close} does the same, stops the writer
+ * and removes the hook; appends after it are written synchronously.
+ * <p>
+ * The journal remembers how far into the file it has read or written, so
+ * lines appended by other processes can be picked up with
+ * {@link #readAppended} without replaying the whole file. Appends and
+ * compaction hold the store's {@link StoreFileLock}, so neither lands in a
+ * file an import in another process is replacing.
+ */
+final class TwoFactorJournal {
+
+    /** When appended lines are forced (fsync) to disk. */
+    enum Durability {
+        /** After every write. */
+        BATCH,
+        /** At most once per {@link #SYNC_INTERVAL_MS}. */
+        PERIODIC,
+        /** Only when flushed at shutdown; the OS decides before that. */
+        SHUTDOWN;
+
+        static Durability parse(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (RuntimeException e) {
+                return BATCH;
+            }
+        }
+    }
+
+    private static final long SYNC_INTERVAL_MS = 1000;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final int READ_CHUNK = 64 * 1024;
+
+    private final Path file;
+    private final StoreFileLock fileLock;
+    private final Durability durability;
+    private final boolean writeBehind;
+    private final Thread writer;         // null unless write-behind
+    private final Thread shutdownHook;
+    private long records;   // lines currently in the file
+
+    // how far the file has been taken in: every byte before position was either
+    // replayed or written by us; ownWrites are our appends beyond it ({start, end}),
+    // left when another process appended in between
+    private long position;
+    private final List<long[]> ownWrites = new ArrayList<>();
+    private Object identity;
+
+    // write-behind queue: latest line per key, guarded by queueLock; a batch is
+    // taken off the queue and written under drainLock so flush() sees it on disk
+    private final Object queueLock = new Object();
+    private final Object drainLock = new Object();
+    private Map<String, String> pending = new LinkedHashMap<>();
+    private boolean closed;
+    private boolean unsynced;
+    private long lastSync;
+
+    TwoFactorJournal(Path file) {
+        this(file, false, Durability.SHUTDOWN);
+    }
+
+    TwoFactorJournal(Path file, boolean writeBehind, Durability durability) {
+        this.file = file;
+        this.fileLock = StoreFileLock.of(file);
+        this.writeBehind = writeBehind;
+        this.durability = durability;
+        if (writeBehind) {
+            writer = new Thread(this::writeLoop, "2fa-store-writer");
+            writer.setDaemon(true);
+            writer.start();
+            shutdownHook = new Thread(this::flushQuietly, "2fa-store-flush");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } else {
+            writer = null;
+            shutdownHook = null;
+        }
+    }
+
+    /**
+     * Write everything queued, force it to disk, stop the writer and remove the
+     * shutdown hook. Safe to call more than once.
+     */
+    void close() throws IOException {
+        if (writeBehind) {
+            synchronized (queueLock) {
+                closed = true;
+                queueLock.notifyAll();
+            }
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException shuttingDown) {
+                // the hook is running or about to; flushing twice is harmless
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while stopping the journal writer");
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Feed every line in the journal to {@code consumer}, oldest first, followed
+     * by lines still queued for writing.
+     */
+    synchronized void replay(Consumer<String> consumer) throws IOException {
+        records = 0;
+        position = 0;
+        ownWrites.clear();
+        identity = null;
+        if (Files.exists(file)) {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                identity = SecretStore.fileIdentity(file);
+                position = readLines(in, 0, in.size(), consumer);
+            }
+        }
+        synchronized (queueLock) {
+            pending.values().forEach(consumer);
+        }
+    }
+
+    /**
+     * Feed {@code consumer} the lines other processes appended since the last
+     * call, skipping our own writes.
+     *
+     * @return false if the file was replaced or truncated meanwhile; the caller
+     *         should {@link #replay} it instead
+     */
+    synchronized boolean readAppended(Consumer<String> consumer) throws IOException {
+        if (!Files.exists(file)) return identity == null;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long end = in.size();
+            if (!SecretStore.fileIdentity(file).equals(identity) || end < position) return false;
+            long pos = position;
+            for (long[] own : ownWrites) {
+                if (own[0] > pos) readLines(in, pos, own[0], consumer);
+                pos = Math.max(pos, own[1]);
+            }
+            ownWrites.clear();
+            position = pos < end ? readLines(in, pos, end, consumer) : pos;
+        }
+        return true;
+    }
+
+    /** @return offset just past the last complete line in [from, to) */
+    private long readLines(FileChannel in, long from, long to, Consumer<String> consumer) throws IOException {
+        byte[] bytes = new byte[READ_CHUNK];
+        long pos = from;       // file offset of bytes[0]
+        int filled = 0;
+        while (pos + filled < to) {
+            if (filled == bytes.length) {   // a line longer than the buffer
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            int want = (int) Math.min(bytes.length - filled, to - pos - filled);
+            int n = in.read(ByteBuffer.wrap(bytes, filled, want), pos + filled);
+            if (n <= 0) break;
+            filled += n;
+            int start = 0;
+            for (int i = 0; i < filled; i++) {
+                if (bytes[i] == '\n') {
+                    records++;
+                    consumer.accept(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+            System.arraycopy(bytes, start, bytes, 0, filled - start);
+            pos += start;
+            filled -= start;
+        }
+        return pos;
+    }
+
+    /**
+     * Append a line recording the new state of {@code key}. In write-behind mode
+     * this only queues it, replacing any line still queued for the same key.
+     */
+    void append(String key, String line) throws IOException {
+        if (writeBehind) {
+            synchronized (queueLock) {
+                if (!closed) {
+                    pending.remove(key);
+                    pending.put(key, line);
+                    queueLock.notifyAll();
+                    return;
+                }
+            }
+        }
+        write(Collections.singletonList(line));
+    }
+
+    /** Write everything queued and force it to disk. */
+    void flush() throws IOException {
+        synchronized (drainLock) {
+            drain();
+            force();
+        }
+    }
+
+    /** Take everything queued and write it; callers hold {@link #drainLock}. */
+    private void drain() throws IOException {
+        Map<String, String> batch;
+        synchronized (queueLock) {
+            batch = pending;
+            pending = new LinkedHashMap<>();
+        }
+        if (!batch.isEmpty()) {
+            writeOrRequeue(batch);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            TwoFactorStoreStats.INSTANCE.error("flush journal", e);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            try {
+                synchronized (queueLock) {
+                    while (pending.isEmpty()) {
+                        // close() flushes and forces whatever is left
+                        if (closed) return;
+                        if (durability == Durability.PERIODIC && unsynced) {
+                            long wait = lastSync + SYNC_INTERVAL_MS - System.currentTimeMillis();
+                            if (wait <= 0) break;
+                            queueLock.wait(wait);
+                        } else {
+                            queueLock.wait();
+                        }
+                    }
+                }
+                synchronized (drainLock) {
+                    drain();
+                    if (periodicSyncDue()) {
+                        force();
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                TwoFactorStoreStats.INSTANCE.error("write journal", e);
+                synchronized (queueLock) {
+                    if (closed) return;
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY_MS);
+                } catch (InterruptedException stop) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean periodicSyncDue() {
+        synchronized (queueLock) {
+            return durability == Durability.PERIODIC && unsynced
+                    && System.currentTimeMillis() - lastSync >= SYNC_INTERVAL_MS;
+        }
+    }
+
+    /** Write a batch; on failure put back lines that have not been superseded meanwhile. */
+    private void writeOrRequeue(Map<String, String> batch) throws IOException {
+        try {
+            write(batch.values());
+        } catch (IOException e) {
+            synchronized (queueLock) {
+                Map<String, String> merged = new LinkedHashMap<>(batch);
+                merged.putAll(pending);
+                pending = merged;
+            }
+            throw e;
+        }
+    }
+
+    private synchronized void write(Collection<String> lines) throws IOException {
+        long started = System.nanoTime();
+        StringBuilder sb = new StringBuilder(lines.size() * 48);
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(sb.toString());
+        fileLock.lock();
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long start = out.size();
+            if (identity == null && start == 0) {
+                identity = SecretStore.fileIdentity(file);
+            }
+            if (start == position) {
+                position += bytes.remaining();
+            } else {
+                ownWrites.add(new long[] {start, start + bytes.remaining()});
+            }
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            if (durability == Durability.BATCH) {
+                out.force(false);
+            } else {
+                synchronized (queueLock) {
+                    unsynced = true;
+                }
+            }
+        } finally {
+            fileLock.unlock();
+        }
+        records += lines.size();
+        TwoFactorStoreStats.INSTANCE.wrote(started, lines.size());
+    }
+
+    private synchronized void force() throws IOException {
+        if (Files.exists(file)) {
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                out.force(false);
+            }
+        }
+        synchronized (queueLock) {
+            unsynced = false;
+            lastSync = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Length of the file already reflected in memory; pass it to {@link #compact}
+     * together with a snapshot taken at the same time.
+     */
+    synchronized long position() {
+        return position;
+    }
+
+    synchronized long records() {
+        return records;
+    }
+
+    /**
+     * True once dead lines make up more than {@code deadRatio} of the journal.
+     */
+    synchronized boolean needsCompaction(int liveRecords, double deadRatio, int minRecords) {
+        return records >= minRecords && records - liveRecords > records * deadRatio;
+    }
+
+    /**
+     * Replace the journal with {@code liveLines}, a snapshot of the store taken
+     * when the file was {@code snapshotLength} bytes long.
+     */
+    void compact(Collection<String> liveLines, long snapshotLength) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".compact");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (String line : liveLines) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+        synchronized (this) {
+            fileLock.lock();
+            try {
+                compactLocked(tmp, liveLines.size(), snapshotLength);
+            } finally {
+                fileLock.unlock();
+            }
+        }
+    }
+
+    /** Carry over the tail appended since the snapshot and swap {@code tmp} in; callers hold the monitor. */
+    private void compactLocked(Path tmp, int liveRecords, long snapshotLength) throws IOException {
+        if (!Files.exists(file) || !SecretStore.fileIdentity(file).equals(identity)) {
+            // replaced by another process; the next readAppended() reloads it
+            Files.deleteIfExists(tmp);
+            return;
+        }
+        long tail = 0;
+        long shift;
+        try (FileChannel src = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel dst = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            shift = dst.size() - snapshotLength;
+            long pos = snapshotLength;
+            long end = src.size();
+            while (pos < end) {
+                pos += src.transferTo(pos, end - pos, dst);
+            }
+            if (end > snapshotLength) {
+                tail = countLines(file, snapshotLength);
+            }
+            dst.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = liveRecords + tail;
+        identity = SecretStore.fileIdentity(file);
+        position += shift;
+        for (long[] own : ownWrites) {
+            own[0] += shift;
+            own[1] += shift;
+        }
+    }
+
+    private static long countLines(Path file, long from) throws IOException {
+        long lines = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            in.skipNBytes(from);
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b == '\n') lines++;
+            }
+        }
+        return lines;
+    }
+}
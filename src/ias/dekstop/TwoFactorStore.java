@@ -1,77 +1,353 @@
 package ias.dekstop;
 
 import java.io.*;
-import java.util.HashMap;
+import java.nio.file.*;
 import java.util.Locale;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple local storage for per-email TOTP secrets and enabled flag.
  * This is client-side only and does not affect the backend.
+ * <p>
+ * By default secrets live in a text journal (see {@link TextSecretStore}).
+ * Starting with {@code -Dias.2fa.format=binary} switches to the memory-mapped
+ * indexed file (see {@link MappedSecretStore}), which answers lookups without
+ * loading every account; the two formats use separate files.
+ * {@code -Dias.2fa.format=encrypted} keeps every record AES-GCM encrypted at
+ * rest (see {@link EncryptedSecretStore}); if its key cannot be derived the
+ * store refuses to load rather than fall back to a plaintext file.
+ * <p>
+ * Text-store saves are written behind by a background thread and coalesced
+ * per account ({@code -Dias.2fa.writeBehind=false} writes synchronously).
+ * {@code -Dias.2fa.durability=batch|periodic|shutdown} picks when saves in
+ * any format are forced to disk: after every write (default), about once a second, or only
+ * at shutdown.
+ * <p>
+ * A Bloom filter over enrolled emails is kept next to the store file (see
+ * {@link EmailBloomFilter}), so {@link #isEnabledForEmail} can answer "no"
+ * for accounts without 2FA before the store has been loaded. That answer is
+ * only trusted while the store file is unchanged since the filter was built;
+ * once anything wrote to it, the store is loaded and the filter rebuilt. The
+ * encrypted format keeps none, since the filter would tell who is enrolled.
+ * <p>
+ * A watcher thread notices when another process changes the store file and
+ * applies just the new records ({@code -Dias.2fa.watch=false} turns it off).
+ * <p>
+ * Load time, read/write counts and latencies and the last I/O failure are
+ * published over JMX and JFR (see {@link TwoFactorStoreStats}).
+ * <p>
+ * Lookups are lock-free once the store is loaded: they read the backend directly
+ * and never wait for a writer's disk I/O. Writers are serialized on the class monitor.
  */
 public final class TwoFactorStore {
 
     private static final String FILE_NAME =
             System.getProperty("user.home") + File.separator + ".ias-desktop-2fa";
+    private static final String FORMAT = System.getProperty("ias.2fa.format", "text");
+    private static final boolean WRITE_BEHIND =
+            Boolean.parseBoolean(System.getProperty("ias.2fa.writeBehind", "true"));
+    private static final TwoFactorJournal.Durability DURABILITY =
+            TwoFactorJournal.Durability.parse(System.getProperty("ias.2fa.durability", "batch"));
+    private static final boolean WATCH =
+            Boolean.parseBoolean(System.getProperty("ias.2fa.watch", "true"));
+    // changes arriving this close together are picked up in one refresh
+    private static final long WATCH_SETTLE_MS = 50;
 
-    private static final Map<String, String> emailToSecret = new HashMap<>();
-    private static boolean loaded = false;
+    private static volatile SecretStore store;
+    private static volatile EmailBloomFilter filter;
+    private static Thread watcher;   // guarded by the class monitor
 
     private TwoFactorStore() {}
 
-    private static String normalizeEmail(String email) {
+    static String normalizeEmail(String email) {
         if (email == null) return "";
         return email.trim().toLowerCase(Locale.ROOT);
     }
 
-    private static synchronized void ensureLoaded() {
-        if (loaded) return;
-        loaded = true;
-        File f = new File(FILE_NAME);
-        if (!f.exists()) return;
-        try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("\\|", 2);
-                if (parts.length == 2) {
-                    String email = parts[0].trim();
-                    String secret = parts[1].trim();
-                    if (!email.isEmpty() && !secret.isEmpty()) {
-                        emailToSecret.put(email, secret);
-                    }
+    private static SecretStore ensureLoaded() {
+        SecretStore s = store;
+        if (s != null) return s;
+        synchronized (TwoFactorStore.class) {
+            if (store == null) {
+                long start = System.nanoTime();
+                // taken before the store reads its file, so a write in between makes the filter stale
+                EmailBloomFilter.StoreStamp stamp = storeStamp();
+                SecretStore opened = open();
+                TwoFactorStoreStats.INSTANCE.loaded(start, opened);
+                if (isBinaryFormat() && opened instanceof TextSecretStore) {
+                    // fell back to the text store, which the binary store's filter does not describe
+                    dropFilter();
+                } else if (!isEncryptedFormat()) {
+                    EmailBloomFilter f = filter();
+                    if (f == null || !f.describes(stamp)) rebuildFilter(opened, stamp);
                 }
+                store = opened;
+                if (WATCH) watch(store, opened instanceof TextSecretStore ? Paths.get(FILE_NAME) : storeFile());
+                TwoFactorStoreStats.INSTANCE.register();
             }
-        } catch (IOException ignored) {
+            return store;
+        }
+    }
+
+    static boolean isBinaryFormat() {
+        return "binary".equalsIgnoreCase(FORMAT);
+    }
+
+    static boolean isEncryptedFormat() {
+        return "encrypted".equalsIgnoreCase(FORMAT);
+    }
+
+    /** The file backing the configured store format. */
+    static Path storeFile() {
+        if (isBinaryFormat()) return Paths.get(FILE_NAME + ".bin");
+        if (isEncryptedFormat()) return Paths.get(FILE_NAME + ".enc");
+        return Paths.get(FILE_NAME);
+    }
+
+    /** The membership filter persisted next to the store file. */
+    static Path filterFile() {
+        return Paths.get(storeFile() + ".bloom");
+    }
+
+    /**
+     * The persisted membership filter, for answering lookups before the store
+     * is loaded; reopened if another process replaced it. Null for the
+     * encrypted format.
+     */
+    private static EmailBloomFilter filter() {
+        if (isEncryptedFormat()) return null;
+        EmailBloomFilter f = filter;
+        if (f == null || !f.isCurrent()) {
+            filter = f = EmailBloomFilter.open(filterFile());
         }
+        return f;
     }
 
-    private static synchronized void persist() {
-        File f = new File(FILE_NAME);
-        try (PrintWriter out = new PrintWriter(new FileWriter(f))) {
-            for (Map.Entry<String, String> e : emailToSecret.entrySet()) {
-                out.println(e.getKey() + "|" + e.getValue());
+    /** The current state of the store file, for {@link EmailBloomFilter#describes}; null if unknown. */
+    private static EmailBloomFilter.StoreStamp storeStamp() {
+        Path file = storeFile();
+        long version = 0;
+        if (isBinaryFormat()) {
+            try {
+                version = MappedSecretStore.dataEnd(file);
+            } catch (IOException e) {
+                version = -1;
             }
-        } catch (IOException ignored) {
         }
+        return EmailBloomFilter.StoreStamp.of(file, version);
+    }
+
+    private static void rebuildFilter(SecretStore s, EmailBloomFilter.StoreStamp stamp) {
+        if (isEncryptedFormat()) return;
+        try {
+            filter = EmailBloomFilter.build(filterFile(), s, stamp);
+        } catch (IOException e) {
+            TwoFactorStoreStats.INSTANCE.error("filter rebuild", e);
+            dropFilter();
+        }
+    }
+
+    /** Delete the filter, so no process trusts it; lookups then load the store. */
+    private static void dropFilter() {
+        filter = null;
+        try {
+            Files.deleteIfExists(filterFile());
+        } catch (IOException e) {
+            TwoFactorStoreStats.INSTANCE.error("filter delete", e);
+        }
+    }
+
+    /** Pick up changes made to the store file outside the facade, if it is loaded. */
+    static void refresh() {
+        SecretStore s = store;
+        if (s != null) s.refresh();
+    }
+
+    /** Accounts in the store, or -1 if it has not been loaded. */
+    static int loadedSize() {
+        SecretStore s = store;
+        return s != null ? s.size() : -1;
     }
 
-    public static synchronized boolean isEnabledForEmail(String email) {
-        ensureLoaded();
-        return emailToSecret.containsKey(normalizeEmail(email));
+    /**
+     * Flush and close the store and stop watching its file. The next call
+     * loads it again.
+     */
+    static synchronized void close() throws IOException {
+        SecretStore s = store;
+        if (s == null) return;
+        store = null;
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+        s.close();
     }
 
-    public static synchronized String getSecretForEmail(String email) {
-        ensureLoaded();
-        return emailToSecret.get(normalizeEmail(email));
+    static void forEachAccount(SecretStore.Visitor visitor) throws IOException {
+        ensureLoaded().forEach(visitor);
+    }
+
+    private static SecretStore open() {
+        if (isEncryptedFormat()) {
+            try {
+                return new EncryptedSecretStore(storeFile(), WRITE_BEHIND, DURABILITY);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open encrypted 2FA store: " + e.getMessage(), e);
+            }
+        }
+        if (isBinaryFormat()) {
+            try {
+                return new MappedSecretStore(storeFile(), DURABILITY);
+            } catch (IOException e) {
+                // fall back to the text store
+                TwoFactorStoreStats.INSTANCE.error("open binary store", e);
+            }
+        }
+        return new TextSecretStore(Paths.get(FILE_NAME), WRITE_BEHIND, DURABILITY);
+    }
+
+    /**
+     * Watch the store file's directory and refresh {@code s} when the file is
+     * changed or replaced, so edits by other processes (provisioning scripts,
+     * a second client) show up without a restart.
+     */
+    private static void watch(SecretStore s, Path path) {
+        Path dir = path.toAbsolutePath().getParent();
+        Path name = path.getFileName();
+        watcher = new Thread(() -> {
+            try (WatchService ws = dir.getFileSystem().newWatchService()) {
+                dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                while (true) {
+                    WatchKey key = ws.take();
+                    boolean changed = false;
+                    while (key != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                                    || name.equals(event.context());
+                        }
+                        if (!key.reset()) return;
+                        key = ws.poll(WATCH_SETTLE_MS, TimeUnit.MILLISECONDS);
+                    }
+                    if (changed) s.refresh();
+                }
+            } catch (IOException e) {
+                TwoFactorStoreStats.INSTANCE.error("watch", e);
+            } catch (InterruptedException | ClosedWatchServiceException ignored) {
+            }
+        }, "2fa-store-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public static boolean isEnabledForEmail(String email) {
+        String key = normalizeEmail(email);
+        if (store == null) {
+            // most accounts have no 2FA: answer those without loading the store, unless
+            // something wrote to the store since the filter was built
+            EmailBloomFilter f = filter();
+            if (f != null && !f.mightContain(key) && f.describes(storeStamp())) {
+                TwoFactorStoreStats.INSTANCE.filterRejected();
+                return false;
+            }
+        }
+        SecretStore s = ensureLoaded();
+        long start = TwoFactorStoreStats.INSTANCE.readStart();
+        boolean enabled = s.contains(key);
+        TwoFactorStoreStats.INSTANCE.read(start, enabled);
+        return enabled;
+    }
+
+    public static String getSecretForEmail(String email) {
+        SecretStore s = ensureLoaded();
+        long start = TwoFactorStoreStats.INSTANCE.readStart();
+        String secret = s.getSecret(normalizeEmail(email));
+        TwoFactorStoreStats.INSTANCE.read(start, secret != null);
+        return secret;
     }
 
     public static synchronized void saveSecretForEmail(String email, String secret) {
         if (email == null || email.trim().isEmpty() || secret == null || secret.trim().isEmpty()) {
             return;
         }
-        ensureLoaded();
-        emailToSecret.put(normalizeEmail(email), secret.trim());
-        persist();
+        SecretStore s = ensureLoaded();
+        String key = normalizeEmail(email);
+        // a new secret usually means a new device, so its drift starts over
+        boolean sameSecret = secret.trim().equals(s.getSecret(key));
+        int drift = sameSecret ? s.getDrift(key) : 0;
+        if (!sameSecret) TotpWindowCache.INSTANCE.forget(key);
+        if (isEncryptedFormat()) {
+            // the encrypted format keeps no filter, so there is nothing to catch up
+            s.put(key, secret.trim(), drift);
+            return;
+        }
+        // the filter must hold the email before the store does
+        EmailBloomFilter f = filter();
+        boolean filterOk = f != null && f.add(key);
+        s.put(key, secret.trim(), drift);
+        if (!filterOk) {
+            // stamp first, then catch up with what other processes wrote before it
+            EmailBloomFilter.StoreStamp stamp = storeStamp();
+            s.refresh();
+            rebuildFilter(s, stamp);
+        }
+    }
+
+    /** Disable local 2FA for the email. */
+    public static synchronized void removeSecretForEmail(String email) {
+        String key = normalizeEmail(email);
+        ensureLoaded().remove(key);
+        TotpWindowCache.INSTANCE.forget(key);
     }
-}
 
+    /** Observed clock offset of the user's authenticator, in TOTP steps (0 if unknown). */
+    public static int getDriftForEmail(String email) {
+        return ensureLoaded().getDrift(normalizeEmail(email));
+    }
+
+    /**
+     * Verify a TOTP code against the stored secret, checking the step the user's
+     * device is known to drift to first. A match at a different offset within
+     * {@link TOTP#MAX_DRIFT_STEPS} is remembered and persisted for the next login.
+     *
+     * @return true if 2FA is enabled for the email and the code is valid
+     */
+    public static boolean verifyCodeForEmail(String email, String code) {
+        SecretStore s = ensureLoaded();
+        String key = normalizeEmail(email);
+        int parsed = TOTP.parseCode(code);
+        if (parsed < 0) return false;
+        long step = TOTP.currentCounter();
+        int drift = s.getDrift(key);
+        int offset = s.matchOffset(key, parsed, step, drift);
+        if (offset == TOTP.NO_MATCH) return false;
+        // a login only learns drift within the cap; a larger offset comes from resync and stays put
+        if (offset != drift && Math.abs(offset) <= TOTP.MAX_DRIFT_STEPS) {
+            synchronized (TwoFactorStore.class) {
+                // skip if the secret was replaced while we were verifying
+                if (s.matchOffset(key, parsed, step, offset) == offset) s.putDrift(key, offset);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resynchronize a user whose authenticator clock is far off (up to ±24 hours)
+     * from two consecutive codes, and remember the offset for later logins.
+     *
+     * @return true if the codes matched and the offset was saved
+     */
+    public static boolean resyncForEmail(String email, String firstCode, String secondCode) {
+        SecretStore s = ensureLoaded();
+        String key = normalizeEmail(email);
+        String secret = s.getSecret(key);
+        if (secret == null) return false;
+        Long offsetMillis = TOTP.resync(secret, firstCode, secondCode, System.currentTimeMillis());
+        if (offsetMillis == null) return false;
+        synchronized (TwoFactorStore.class) {
+            if (!secret.equals(s.getSecret(key))) return false;
+            s.put(key, secret, (int) (offsetMillis / 1000 / TOTP.TIME_STEP_SECONDS));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,278 @@
+package ias.dekstop;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for {@link TwoFactorStore}, published over
+ * JMX (see {@link TwoFactorStoreStatsMXBean}) so the store can be watched in
+ * JConsole. Loads, journal writes and I/O failures are also emitted as JFR
+ * events under "IAS Desktop".
+ * <p>
+ * Recording is lock-free. Every read is counted but only one in
+ * {@value #READ_SAMPLE} is timed, since a lookup takes less than a pair of
+ * clock reads.
+ */
+final class TwoFactorStoreStats implements TwoFactorStoreStatsMXBean {
+
+    static final TwoFactorStoreStats INSTANCE = new TwoFactorStoreStats();
+    static final String OBJECT_NAME = "ias.dekstop:type=TwoFactorStore";
+
+    private static final int READ_SAMPLE = 64;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder filterRejects = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final AtomicLong errors = new AtomicLong();
+    private final Histogram readNanos = new Histogram();
+    private final Histogram writeNanos = new Histogram();
+    private volatile long loadNanos = -1;
+    private volatile String lastError;
+    private boolean registered;
+
+    @Name("ias.dekstop.StoreLoad")
+    @Label("2FA Store Load")
+    @Category("IAS Desktop")
+    static final class LoadEvent extends Event {
+        @Label("Format")
+        String format;
+        @Label("Accounts")
+        int accounts;
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long took;
+    }
+
+    @Name("ias.dekstop.StoreWrite")
+    @Label("2FA Store Write")
+    @Category("IAS Desktop")
+    static final class WriteEvent extends Event {
+        @Label("Records")
+        int records;
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long took;
+    }
+
+    @Name("ias.dekstop.StoreError")
+    @Label("2FA Store I/O Error")
+    @Category("IAS Desktop")
+    static final class ErrorEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Message")
+        String message;
+    }
+
+    private TwoFactorStoreStats() {}
+
+    /** Register with the platform MBean server; later calls do nothing. */
+    synchronized void register() {
+        if (registered) return;
+        registered = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            // e.g. a second copy of the classes already registered the name
+        }
+    }
+
+    /** @return a start time to pass to {@link #read}, or 0 if this read is not timed */
+    long readStart() {
+        return ThreadLocalRandom.current().nextInt(READ_SAMPLE) == 0 ? System.nanoTime() : 0;
+    }
+
+    void read(long start, boolean hit) {
+        if (start != 0) readNanos.record(System.nanoTime() - start);
+        reads.increment();
+        if (hit) hits.increment();
+    }
+
+    void filterRejected() {
+        reads.increment();
+        filterRejects.increment();
+    }
+
+    void loaded(long start, SecretStore store) {
+        long took = System.nanoTime() - start;
+        loadNanos = took;
+        LoadEvent event = new LoadEvent();
+        if (event.isEnabled()) {
+            event.format = getFormat();
+            event.accounts = store.size();
+            event.took = took;
+            event.commit();
+        }
+    }
+
+    /** {@code records} were written to the store file in one write started at {@code start}. */
+    void wrote(long start, int records) {
+        long took = System.nanoTime() - start;
+        writeNanos.record(took);
+        writes.add(records);
+        WriteEvent event = new WriteEvent();
+        if (event.isEnabled()) {
+            event.records = records;
+            event.took = took;
+            event.commit();
+        }
+    }
+
+    /** Remember an I/O failure the store recovered from by carrying on. */
+    void error(String operation, Exception e) {
+        errors.incrementAndGet();
+        lastError = Instant.now() + " " + operation + ": " + e;
+        ErrorEvent event = new ErrorEvent();
+        if (event.isEnabled()) {
+            event.operation = operation;
+            event.message = String.valueOf(e);
+            event.commit();
+        }
+    }
+
+    @Override
+    public String getFormat() {
+        if (TwoFactorStore.isBinaryFormat()) return "binary";
+        return TwoFactorStore.isEncryptedFormat() ? "encrypted" : "text";
+    }
+
+    @Override
+    public double getLoadTimeMillis() {
+        long n = loadNanos;
+        return n < 0 ? -1 : n / 1e6;
+    }
+
+    @Override
+    public int getEntryCount() {
+        return TwoFactorStore.loadedSize();
+    }
+
+    @Override
+    public long getFileSizeBytes() {
+        try {
+            return Files.size(TwoFactorStore.storeFile());
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public long getReadCount() {
+        return reads.sum();
+    }
+
+    @Override
+    public long getReadHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getFilterRejectCount() {
+        return filterRejects.sum();
+    }
+
+    @Override
+    public long getWriteCount() {
+        return writes.sum();
+    }
+
+    @Override
+    public double getReadLatencyP50Micros() {
+        return readNanos.percentile(0.5) / 1e3;
+    }
+
+    @Override
+    public double getReadLatencyP99Micros() {
+        return readNanos.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getReadLatencyP999Micros() {
+        return readNanos.percentile(0.999) / 1e3;
+    }
+
+    @Override
+    public double getWriteLatencyP50Micros() {
+        return writeNanos.percentile(0.5) / 1e3;
+    }
+
+    @Override
+    public double getWriteLatencyP99Micros() {
+        return writeNanos.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getWriteLatencyP999Micros() {
+        return writeNanos.percentile(0.999) / 1e3;
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Log-linear histogram of nanosecond timings: eight buckets per power of
+     * two, so a percentile is within 12.5% of the true value.
+     */
+    private static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucket(Math.max(0, nanos)));
+        }
+
+        private static int bucket(long v) {
+            if (v < SUB) return (int) v;
+            int msb = 63 - Long.numberOfLeadingZeros(v);
+            return ((msb - SUB_BITS + 1) << SUB_BITS) | (int) ((v >>> (msb - SUB_BITS)) & (SUB - 1));
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB) return bucket;
+            int shift = (bucket >>> SUB_BITS) - 1;
+            return ((long) (SUB | (bucket & (SUB - 1))) << shift) + (1L << shift) - 1;
+        }
+
+        /** @return the timing at quantile {@code q}, in nanoseconds (0 if nothing was recorded) */
+        double percentile(double q) {
+            long[] snapshot = new long[counts.length()];
+            long total = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return upperBound(i);
+            }
+            return upperBound(snapshot.length - 1);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ias.dekstop;
+
+/**
+ * Management view of the local 2FA store, registered with the platform MBean
+ * server as {@value TwoFactorStoreStats#OBJECT_NAME} once the store is loaded.
+ * Latencies are in microseconds; read latencies are sampled.
+ */
+public interface TwoFactorStoreStatsMXBean {
+
+    /** Configured store format: text, binary or encrypted. */
+    String getFormat();
+
+    /** How long opening the store took, or -1 if it is not loaded yet. */
+    double getLoadTimeMillis();
+
+    /** Accounts in the store, or -1 if it is not loaded yet. */
+    int getEntryCount();
+
+    /** Size of the store file, or -1 if there is none. */
+    long getFileSizeBytes();
+
+    long getReadCount();
+
+    long getReadHitCount();
+
+    /** Lookups answered "not enrolled" by the membership filter without loading the store. */
+    long getFilterRejectCount();
+
+    /** Records written to the store file. */
+    long getWriteCount();
+
+    double getReadLatencyP50Micros();
+
+    double getReadLatencyP99Micros();
+
+    double getReadLatencyP999Micros();
+
+    double getWriteLatencyP50Micros();
+
+    double getWriteLatencyP99Micros();
+
+    double getWriteLatencyP999Micros();
+
+    /** I/O failures so far; the store keeps serving from memory after one. */
+    long getErrorCount();
+
+    /** The most recent I/O failure with its time and where it happened, or null. */
+    String getLastError();
+}
@@ -0,0 +1,399 @@
+package ias.dekstop;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless bulk import and export of 2FA secrets for migrations.
+ * <p>
+ * Import reads CSV ({@code email,secret[,drift]}, e.g. a provisioning
+ * manifest) or journal lines ({@code email|secret[|drift]}) of any size. Lines
+ * are parsed, normalized and checked with the Base32 decoder in chunks on a
+ * worker pool, and written in input order to a copy of the store file, which
+ * then replaces the store in one atomic move. Imported accounts override
+ * existing ones; rejected lines are reported and skipped. Writes other
+ * processes make to the store meanwhile are kept: the text formats carry
+ * them over under the store's {@link StoreFileLock} before the move, and a
+ * binary import holds that lock throughout, so they wait for it. Only a few chunks
+ * are in memory at a time, so heap use does not grow with the input.
+ * <p>
+ * Export writes every account as CSV if the file name ends in {@code .csv},
+ * as journal lines otherwise. {@code -} means stdin / stdout.
+ * <p>
+ * The store file and format are the same as {@link TwoFactorStore}'s
+ * ({@code -Dias.2fa.format}).
+ * Usage: {@code TwoFactorStoreTool import <file|-> | export <file|->}
+ */
+public final class TwoFactorStoreTool {
+
+    private static final int CHUNK_LINES = 4096;
+    private static final int MAX_REPORTED_ERRORS = 20;
+
+    private final int workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private final List<String> errors = new ArrayList<>();
+    private long rejected;
+
+    /** Parsed accounts of one chunk of input, in input order. */
+    private static final class Chunk {
+        final List<String> emails = new ArrayList<>(CHUNK_LINES);
+        final List<String> secrets = new ArrayList<>(CHUNK_LINES);
+        final List<Integer> drifts = new ArrayList<>(CHUNK_LINES);
+        final List<String> errors = new ArrayList<>();
+    }
+
+    /** Destination of an import: a copy of the store file swapped in on commit. */
+    private interface ImportTarget {
+        void add(String email, String secret, int drift) throws IOException;
+
+        void commit() throws IOException;
+
+        void abort();
+    }
+
+    /**
+     * Import every account in {@code in} into the store.
+     *
+     * @return number of accounts imported
+     */
+    public long importAccounts(BufferedReader in) throws IOException {
+        ImportTarget target = TwoFactorStore.isBinaryFormat()
+                ? new BinaryImport(TwoFactorStore.storeFile())
+                : new JournalImport(TwoFactorStore.storeFile(), TwoFactorStore.isEncryptedFormat()
+                        ? EncryptedSecretStore.keys(TwoFactorStore.storeFile()) : null);
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "2fa-import");
+            t.setDaemon(true);
+            return t;
+        });
+        ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        long count = 0;
+        boolean committed = false;
+        try {
+            long lineNo = 0;
+            while (true) {
+                List<String> lines = new ArrayList<>(CHUNK_LINES);
+                String line;
+                while (lines.size() < CHUNK_LINES && (line = in.readLine()) != null) {
+                    lines.add(line);
+                }
+                if (lines.isEmpty()) break;
+                long firstLine = lineNo + 1;
+                inFlight.add(pool.submit(() -> parse(lines, firstLine)));
+                lineNo += lines.size();
+                if (inFlight.size() >= workers * 2) {
+                    count += store(target, inFlight.poll());
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                count += store(target, inFlight.poll());
+            }
+            // the membership filter does not know the imported emails; drop it
+            // before they land so it is never missing one, and rebuild on next load
+            Files.deleteIfExists(TwoFactorStore.filterFile());
+            target.commit();
+            committed = true;
+        } finally {
+            pool.shutdownNow();
+            if (!committed) target.abort();
+        }
+        TwoFactorStore.refresh();
+        return count;
+    }
+
+    private long store(ImportTarget target, Future<Chunk> pending) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        for (int i = 0; i < chunk.emails.size(); i++) {
+            target.add(chunk.emails.get(i), chunk.secrets.get(i), chunk.drifts.get(i));
+        }
+        rejected += chunk.errors.size();
+        for (String error : chunk.errors) {
+            if (errors.size() < MAX_REPORTED_ERRORS) errors.add(error);
+        }
+        return chunk.emails.size();
+    }
+
+    private static Chunk parse(List<String> lines, long firstLine) {
+        Chunk chunk = new Chunk();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.isBlank()) continue;
+            int bar = line.indexOf('|');
+            int comma = line.indexOf(',');
+            String[] fields = bar >= 0 && (comma < 0 || bar < comma) ? line.split("\\|", 3) : splitCsv(line);
+            String email = TwoFactorStore.normalizeEmail(fields[0]);
+            if (i == 0 && firstLine == 1 && email.equals("email")) continue;   // CSV header
+            String secret = fields.length > 1 ? fields[1].trim() : "";
+            String error = null;
+            if (email.isEmpty() || email.indexOf('|') >= 0) {
+                error = "bad email";
+            } else if (email.getBytes(StandardCharsets.UTF_8).length > 0xFFFF) {
+                error = "email too long";
+            } else if (secret.isEmpty() || secret.length() > 0xFF) {
+                error = "bad secret";
+            } else {
+                byte[] key = Base32.decode(secret);
+                if (key == null || key.length == 0) error = "secret is not Base32";
+            }
+            if (error != null) {
+                chunk.errors.add("line " + (firstLine + i) + ": " + error);
+                continue;
+            }
+            int drift = 0;
+            if (fields.length > 2) {
+                try {
+                    drift = Integer.parseInt(fields[2].trim());
+                } catch (NumberFormatException ignored) {
+                    // some other column, e.g. the otpauth URI in a manifest
+                }
+            }
+            chunk.emails.add(email);
+            chunk.secrets.add(secret);
+            chunk.drifts.add(drift);
+        }
+        return chunk;
+    }
+
+    /** First three fields of a CSV line, honouring double quotes. */
+    private static String[] splitCsv(String line) {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length() && fields.size() < 3; i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (fields.size() < 3) fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     * Text store: copy the journal, append the imported lines (later lines
+     * win), carry over anything appended to the live file meanwhile, swap.
+     * The last two steps hold the file lock, so no append falls between them.
+     * With {@code keys}, lines are written in the encrypted store's format.
+     */
+    private static final class JournalImport implements ImportTarget {
+        private final Path file;
+        private final Path tmp;
+        private final Object identity;
+        private final long copied;
+        private final EncryptedSecretStore.Keys keys;
+        private final Writer out;
+
+        JournalImport(Path file, EncryptedSecretStore.Keys keys) throws IOException {
+            this.file = file;
+            this.keys = keys;
+            this.tmp = file.resolveSibling(file.getFileName() + ".import");
+            if (Files.exists(file)) {
+                identity = SecretStore.fileIdentity(file);
+                Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+                copied = Files.size(tmp);
+            } else {
+                identity = null;
+                copied = 0;
+                Files.deleteIfExists(tmp);
+            }
+            out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 1 << 16);
+            if (copied > 0 && !endsWithNewline(tmp)) out.write('\n');
+        }
+
+        private static boolean endsWithNewline(Path path) throws IOException {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                ch.read(last, ch.size() - 1);
+                return last.get(0) == '\n';
+            }
+        }
+
+        @Override
+        public void add(String email, String secret, int drift) throws IOException {
+            out.write(keys != null ? keys.formatLine(email, secret, drift)
+                    : TextSecretStore.formatLine(email, secret, drift));
+            out.write('\n');
+        }
+
+        @Override
+        public void commit() throws IOException {
+            out.close();
+            StoreFileLock lock = StoreFileLock.of(file);
+            lock.lock();
+            try {
+                carryOverAndSwap();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void carryOverAndSwap() throws IOException {
+            try (FileChannel dst = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                if (Files.exists(file)) {
+                    if (identity != null && !identity.equals(SecretStore.fileIdentity(file))) {
+                        throw new IOException("Store file was replaced during the import; run it again");
+                    }
+                    try (FileChannel src = FileChannel.open(file, StandardOpenOption.READ)) {
+                        long pos = identity != null ? copied : 0;
+                        long end = src.size();
+                        while (pos < end) {
+                            pos += src.transferTo(pos, end - pos, dst);
+                        }
+                    }
+                }
+                dst.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void abort() {
+            try {
+                out.close();
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Binary store: put the accounts into a mapped copy of the file, then swap.
+     * A write changes slots in place, which cannot be carried over like journal
+     * lines, so the file lock is held from the copy to the swap.
+     */
+    private static final class BinaryImport implements ImportTarget {
+        private final Path file;
+        private final Path tmp;
+        private final StoreFileLock lock;
+        private final MappedSecretStore store;
+
+        BinaryImport(Path file) throws IOException {
+            this.file = file;
+            this.tmp = file.resolveSibling(file.getFileName() + ".import");
+            lock = StoreFileLock.of(file);
+            lock.lock();
+            try {
+                if (Files.exists(file)) {
+                    Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.deleteIfExists(tmp);
+                }
+                store = new MappedSecretStore(tmp);
+            } catch (IOException | RuntimeException e) {
+                lock.unlock();
+                throw e;
+            }
+        }
+
+        @Override
+        public void add(String email, String secret, int drift) {
+            store.put(email, secret, drift);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            store.close();
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // on failure abort() releases it
+            lock.unlock();
+        }
+
+        @Override
+        public void abort() {
+            try {
+                store.close();
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write every account in the store to {@code out}.
+     *
+     * @return number of accounts written
+     */
+    public long exportAccounts(Writer out, boolean csv) throws IOException {
+        long[] count = {0};
+        if (csv) out.write("email,secret,drift\n");
+        TwoFactorStore.forEachAccount((email, secret, drift) -> {
+            if (csv) {
+                out.write(csv(email) + "," + secret + "," + drift + "\n");
+            } else {
+                out.write(TextSecretStore.formatLine(email, secret, drift) + "\n");
+            }
+            count[0]++;
+        });
+        out.flush();
+        return count[0];
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.err.println("Usage: TwoFactorStoreTool import <file|-> | export <file|->");
+            System.exit(2);
+        }
+        TwoFactorStoreTool tool = new TwoFactorStoreTool();
+        boolean std = args[1].equals("-");
+        try {
+            if (args[0].equals("import")) {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                        std ? System.in : new FileInputStream(args[1]), StandardCharsets.UTF_8), 1 << 16)) {
+                    long n = tool.importAccounts(in);
+                    for (String error : tool.errors) System.err.println(error);
+                    System.err.println("Imported " + n + " accounts into " + TwoFactorStore.storeFile()
+                            + (tool.rejected > 0 ? ", rejected " + tool.rejected + " lines" : ""));
+                }
+            } else {
+                try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                        std ? System.out : new FileOutputStream(args[1]), StandardCharsets.UTF_8), 1 << 16)) {
+                    long n = tool.exportAccounts(out, args[1].toLowerCase(Locale.ROOT).endsWith(".csv"));
+                    System.err.println("Exported " + n + " accounts");
+                }
+            }
+        } finally {
+            // stop the journal writer and force what it has not written
+            TwoFactorStore.close();
+        }
+    }
+}
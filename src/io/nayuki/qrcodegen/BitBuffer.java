@@ -7,7 +7,7 @@
 
 package io.nayuki.qrcodegen;
 
-import java.util.BitSet;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -15,11 +15,13 @@ import java.util.Objects;
  */
 public final class BitBuffer implements Cloneable {
 
-    private BitSet data;
+    // Bit i is bit 63 - (i & 63) of data[i >>> 6], so the bits read in order from the top of each
+    // word down and every byte of the sequence is a whole byte of a word. Bits past bitLength are 0.
+    private long[] data;
     private int bitLength;
 
     public BitBuffer() {
-        data = new BitSet();
+        data = new long[4];
         bitLength = 0;
     }
 
@@ -30,7 +32,7 @@ public final class BitBuffer implements Cloneable {
     public int getBit(int index) {
         if (index < 0 || index >= bitLength)
             throw new IndexOutOfBoundsException();
-        return data.get(index) ? 1 : 0;
+        return (int) (data[index >>> 6] >>> (~index & 63)) & 1;
     }
 
     public void appendBits(int val, int len) {
@@ -38,23 +40,57 @@ public final class BitBuffer implements Cloneable {
             throw new IllegalArgumentException("Value out of range");
         if (Integer.MAX_VALUE - bitLength < len)
             throw new IllegalStateException("Maximum length reached");
-        for (int i = len - 1; i >= 0; i--, bitLength++)
-            data.set(bitLength, QrCode.getBit(val, i));
+        if (len == 0) return;
+        ensureCapacity(bitLength + len);
+        // left-align the value in a word, then split it over at most two words
+        long v = (long) val << (64 - len);
+        int off = bitLength & 63, w = bitLength >>> 6;
+        data[w] |= v >>> off;
+        if (off + len > 64) data[w + 1] = v << (64 - off);
+        bitLength += len;
     }
 
     public void appendData(BitBuffer bb) {
         Objects.requireNonNull(bb);
         if (Integer.MAX_VALUE - bitLength < bb.bitLength)
             throw new IllegalStateException("Maximum length reached");
-        for (int i = 0; i < bb.bitLength; i++, bitLength++)
-            data.set(bitLength, bb.data.get(i));
+        int n = bb.bitLength;
+        if (n == 0) return;
+        ensureCapacity(bitLength + n);
+        int off = bitLength & 63, w = bitLength >>> 6, words = (n + 63) >>> 6;
+        if (off == 0) {
+            System.arraycopy(bb.data, 0, data, w, words);
+        } else {
+            for (int i = 0; i < words; i++) {
+                long v = bb.data[i];
+                data[w + i] |= v >>> off;
+                if (w + i + 1 < data.length) data[w + i + 1] = v << (64 - off);
+            }
+        }
+        bitLength += n;
+    }
+
+    /**
+     * Returns the bits packed 8 to a byte, most significant bit first; a partial last byte is padded
+     * with 0s.
+     */
+    public byte[] toByteArray() {
+        byte[] result = new byte[(bitLength + 7) >>> 3];
+        for (int i = 0; i < result.length; i++)
+            result[i] = (byte) (data[i >>> 3] >>> (56 - ((i & 7) << 3)));
+        return result;
+    }
+
+    private void ensureCapacity(int bits) {
+        int words = (bits + 63) >>> 6;
+        if (words > data.length) data = Arrays.copyOf(data, Math.max(words, data.length * 2));
     }
 
     @Override
     public BitBuffer clone() {
         try {
             BitBuffer result = (BitBuffer) super.clone();
-            result.data = (BitSet) result.data.clone();
+            result.data = result.data.clone();
             return result;
         } catch (CloneNotSupportedException e) {
             throw new AssertionError(e);
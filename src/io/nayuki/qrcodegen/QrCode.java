@@ -10,6 +10,8 @@ package io.nayuki.qrcodegen;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 public final class QrCode {
 
@@ -70,9 +72,7 @@ public final class QrCode {
         for (int padByte = 0xEC; bb.bitLength() < dataCapacityBits; padByte ^= 0xEC ^ 0x11)
             bb.appendBits(padByte, 8);
 
-        byte[] dataCodewords = new byte[bb.bitLength() / 8];
-        for (int i = 0; i < bb.bitLength(); i++)
-            dataCodewords[i >>> 3] |= bb.getBit(i) << (7 - (i & 7));
+        byte[] dataCodewords = bb.toByteArray();
 
         return new QrCode(version, ecl, dataCodewords, mask);
     }
@@ -84,8 +84,10 @@ public final class QrCode {
     public final int size;
     public final Ecc errorCorrectionLevel;
     public final int mask;
-    private boolean[][] modules;
-    private boolean[][] isFunction;
+    // size rows of rowWords longs each; column x of row y is bit (x & 63) of word y * rowWords + (x >>> 6)
+    private final int rowWords;
+    private long[] modules;
+    private long[] isFunction;
 
     public QrCode(int ver, Ecc ecl, byte[] dataCodewords, int msk) {
         if (ver < MIN_VERSION || ver > MAX_VERSION) throw new IllegalArgumentException("Version value out of range");
@@ -94,34 +96,150 @@ public final class QrCode {
         size = ver * 4 + 17;
         errorCorrectionLevel = Objects.requireNonNull(ecl);
         Objects.requireNonNull(dataCodewords);
-        modules = new boolean[size][size];
-        isFunction = new boolean[size][size];
+        rowWords = (size + 63) >>> 6;
+        modules = new long[size * rowWords];
+        isFunction = new long[size * rowWords];
+        // columns past the edge count as function modules, so masks never touch them
+        for (int y = 0; y < size; y++) isFunction[(y + 1) * rowWords - 1] = ~wordMask(rowWords - 1, size);
 
         drawFunctionPatterns();
         byte[] allCodewords = addEccAndInterleave(dataCodewords);
         drawCodewords(allCodewords);
 
-        if (msk == -1) {
-            int minPenalty = Integer.MAX_VALUE;
-            for (int i = 0; i < 8; i++) {
-                applyMask(i);
-                drawFormatBits(i);
-                int penalty = getPenaltyScore();
-                if (penalty < minPenalty) {
-                    msk = i;
-                    minPenalty = penalty;
-                }
-                applyMask(i);
-            }
-        }
+        if (msk == -1) msk = useConcurrentMasks() ? chooseMaskConcurrently() : chooseMask();
         mask = msk;
-        applyMask(msk);
-        drawFormatBits(msk);
+        applyMask(modules, msk);
+        drawFormatBits(modules, msk);
         isFunction = null;
     }
 
+    private boolean useConcurrentMasks() {
+        String concurrent = System.getProperty("qrcodegen.concurrentMasks", "auto");
+        if (concurrent.equalsIgnoreCase("true")) return true;
+        if (concurrent.equalsIgnoreCase("false")) return false;
+        return version >= CONCURRENT_MASKS_MIN_VERSION && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    private int chooseMask() {
+        return "exhaustive".equalsIgnoreCase(System.getProperty("qrcodegen.maskSearch"))
+                ? chooseMaskExhaustively() : chooseMaskEarlyAbort();
+    }
+
+    private int chooseMaskExhaustively() {
+        long[] transposed = new long[modules.length];
+        int best = 0;
+        int minPenalty = Integer.MAX_VALUE;
+        for (int i = 0; i < 8; i++) {
+            applyMask(modules, i);
+            drawFormatBits(modules, i);
+            int penalty = getPenaltyScore(modules, transposed);
+            if (penalty < minPenalty) {
+                best = i;
+                minPenalty = penalty;
+            }
+            applyMask(modules, i);
+        }
+        return best;
+    }
+
+    // Picks the same mask as chooseMaskExhaustively while scoring less. The cheap, exact 2x2 and balance
+    // terms of every mask come first and set the order the rest are tried in; the line terms are then
+    // added a band of lines at a time, and a mask is dropped once its running total (a lower bound,
+    // as every term is positive) shows it can no longer win.
+    private int chooseMaskEarlyAbort() {
+        long[][] grids = new long[8][];
+        int[] partial = new int[8];
+        int[] order = new int[8];
+        for (int i = 0; i < 8; i++) {
+            grids[i] = modules.clone();
+            applyMask(grids[i], i);
+            drawFormatBits(grids[i], i);
+            partial[i] = getBlockAndBalancePenalty(grids[i]);
+            int j = i;
+            for (; j > 0 && partial[order[j - 1]] > partial[i]; j--) order[j] = order[j - 1];
+            order[j] = i;
+        }
+        long[] transposed = new long[modules.length];
+        long[] line = new long[rowWords + 2];
+        int best = -1;
+        int minPenalty = Integer.MAX_VALUE;
+        for (int i : order) {
+            long[] grid = grids[i];
+            int score = partial[i];
+            boolean lost = cannotWin(score, i, minPenalty, best);
+            for (int y = 0; y < size && !lost; y += PENALTY_BAND_LINES) {
+                for (int end = Math.min(size, y + PENALTY_BAND_LINES), j = y; j < end; j++)
+                    score += getLinePenalty(grid, j * rowWords, line);
+                lost = cannotWin(score, i, minPenalty, best);
+            }
+            if (!lost) transpose(grid, transposed);
+            for (int x = 0; x < size && !lost; x += PENALTY_BAND_LINES) {
+                for (int end = Math.min(size, x + PENALTY_BAND_LINES), j = x; j < end; j++)
+                    score += getLinePenalty(transposed, j * rowWords, line);
+                lost = cannotWin(score, i, minPenalty, best);
+            }
+            if (!lost) {
+                best = i;
+                minPenalty = score;
+            }
+        }
+        return best;
+    }
+
+    // Ties go to the lower mask, as in the exhaustive search.
+    private static boolean cannotWin(int score, int msk, int minPenalty, int best) {
+        return score > minPenalty || score == minPenalty && msk > best;
+    }
+
+    // Scores every mask on its own copy of the symbol on the common fork-join pool. Ties go to the
+    // lower mask as in chooseMaskExhaustively, so both pick the same one.
+    private int chooseMaskConcurrently() {
+        int[] penalties = IntStream.range(0, 8).parallel().map(i -> {
+            long[] grid = modules.clone();
+            applyMask(grid, i);
+            drawFormatBits(grid, i);
+            return getPenaltyScore(grid, new long[grid.length]);
+        }).toArray();
+        int best = 0;
+        for (int i = 1; i < 8; i++) if (penalties[i] < penalties[best]) best = i;
+        return best;
+    }
+
     public boolean getModule(int x, int y) {
-        return 0 <= x && x < size && 0 <= y && y < size && modules[y][x];
+        return 0 <= x && x < size && 0 <= y && y < size && module(x, y);
+    }
+
+    public int getRowWords() {
+        return rowWords;
+    }
+
+    /**
+     * Copies row {@code y} into {@code dest} from {@code destPos}: module x is dark if bit
+     * {@code x & 63} of {@code dest[destPos + (x >>> 6)]} is set. Bits past {@link #size} are 0.
+     */
+    public void getRow(int y, long[] dest, int destPos) {
+        Objects.checkIndex(y, size);
+        System.arraycopy(modules, y * rowWords, dest, destPos, rowWords);
+    }
+
+    public long[] getRow(int y) {
+        long[] row = new long[rowWords];
+        getRow(y, row, 0);
+        return row;
+    }
+
+    private boolean module(int x, int y) {
+        return (modules[y * rowWords + (x >>> 6)] >>> x & 1) != 0;
+    }
+
+    private boolean isFunction(int x, int y) {
+        return (isFunction[y * rowWords + (x >>> 6)] >>> x & 1) != 0;
+    }
+
+    private void setModule(long[] grid, int x, int y, boolean isDark) {
+        int i = y * rowWords + (x >>> 6);
+        if (isDark) grid[i] |= 1L << x;
+        else grid[i] &= ~(1L << x);
     }
 
     static boolean getBit(int x, int i) {
@@ -144,23 +262,29 @@ public final class QrCode {
                     drawAlignmentPattern(alignPatPos[i], alignPatPos[j]);
             }
         }
-        drawFormatBits(0);
+        drawFormatBits(modules, 0);
         drawVersion();
     }
 
-    private void drawFormatBits(int msk) {
+    private void drawFormatBits(long[] grid, int msk) {
         int data = errorCorrectionLevel.formatBits << 3 | msk;
         int rem = data;
         for (int i = 0; i < 10; i++) rem = (rem << 1) ^ ((rem >>> 9) * 0x537);
         int bits = (data << 10 | rem) ^ 0x5412;
-        for (int i = 0; i <= 5; i++) setFunctionModule(8, i, getBit(bits, i));
-        setFunctionModule(8, 7, getBit(bits, 6));
-        setFunctionModule(8, 8, getBit(bits, 7));
-        setFunctionModule(7, 8, getBit(bits, 8));
-        for (int i = 9; i < 15; i++) setFunctionModule(14 - i, 8, getBit(bits, i));
-        for (int i = 0; i < 8; i++) setFunctionModule(size - 1 - i, 8, getBit(bits, i));
-        for (int i = 8; i < 15; i++) setFunctionModule(8, size - 15 + i, getBit(bits, i));
-        setFunctionModule(8, size - 8, true);
+        for (int i = 0; i <= 5; i++) setFormatModule(grid, 8, i, getBit(bits, i));
+        setFormatModule(grid, 8, 7, getBit(bits, 6));
+        setFormatModule(grid, 8, 8, getBit(bits, 7));
+        setFormatModule(grid, 7, 8, getBit(bits, 8));
+        for (int i = 9; i < 15; i++) setFormatModule(grid, 14 - i, 8, getBit(bits, i));
+        for (int i = 0; i < 8; i++) setFormatModule(grid, size - 1 - i, 8, getBit(bits, i));
+        for (int i = 8; i < 15; i++) setFormatModule(grid, 8, size - 15 + i, getBit(bits, i));
+        setFormatModule(grid, 8, size - 8, true);
+    }
+
+    // Format modules are function modules of the symbol itself; copies scored for a mask only take the bits.
+    private void setFormatModule(long[] grid, int x, int y, boolean isDark) {
+        if (grid == modules) setFunctionModule(x, y, isDark);
+        else setModule(grid, x, y, isDark);
     }
 
     private void drawVersion() {
@@ -194,8 +318,8 @@ public final class QrCode {
     }
 
     private void setFunctionModule(int x, int y, boolean isDark) {
-        modules[y][x] = isDark;
-        isFunction[y][x] = true;
+        setModule(modules, x, y, isDark);
+        isFunction[y * rowWords + (x >>> 6)] |= 1L << x;
     }
 
     private byte[] addEccAndInterleave(byte[] data) {
@@ -238,8 +362,8 @@ public final class QrCode {
                     int x = right - j;
                     boolean upward = ((right + 1) & 2) == 0;
                     int y = upward ? size - 1 - vert : vert;
-                    if (!isFunction[y][x] && i < data.length * 8) {
-                        modules[y][x] = getBit((data[i >>> 3] & 0xFF), 7 - (i & 7));
+                    if (!isFunction(x, y) && i < data.length * 8) {
+                        setModule(modules, x, y, getBit((data[i >>> 3] & 0xFF), 7 - (i & 7)));
                         i++;
                     }
                 }
@@ -247,81 +371,144 @@ public final class QrCode {
         }
     }
 
-    private void applyMask(int msk) {
+    private void applyMask(long[] grid, int msk) {
         if (msk < 0 || msk > 7) throw new IllegalArgumentException("Mask value out of range");
+        long[] pattern = MASK_PATTERNS[msk];
         for (int y = 0; y < size; y++) {
-            for (int x = 0; x < size; x++) {
-                boolean invert;
-                switch (msk) {
-                    case 0: invert = (x + y) % 2 == 0; break;
-                    case 1: invert = y % 2 == 0; break;
-                    case 2: invert = x % 3 == 0; break;
-                    case 3: invert = (x + y) % 3 == 0; break;
-                    case 4: invert = (x / 3 + y / 2) % 2 == 0; break;
-                    case 5: invert = x * y % 2 + x * y % 3 == 0; break;
-                    case 6: invert = (x * y % 2 + x * y % 3) % 2 == 0; break;
-                    case 7: invert = ((x + y) % 2 + x * y % 3) % 2 == 0; break;
-                    default: throw new AssertionError();
-                }
-                modules[y][x] ^= invert & !isFunction[y][x];
-            }
+            int row = y * rowWords;
+            int pat = y % MASK_PERIOD * MASK_ROW_WORDS;
+            for (int w = 0; w < rowWords; w++)
+                grid[row + w] ^= pattern[pat + w] & ~isFunction[row + w];
         }
     }
 
-    private int getPenaltyScore() {
+    private int getPenaltyScore(long[] grid, long[] transposed) {
+        int result = 0;
+        long[] line = new long[rowWords + 2];
+        for (int y = 0; y < size; y++) result += getLinePenalty(grid, y * rowWords, line);
+        transpose(grid, transposed);
+        for (int x = 0; x < size; x++) result += getLinePenalty(transposed, x * rowWords, line);
+        return result + getBlockAndBalancePenalty(grid);
+    }
+
+    // Penalties for 2x2 blocks of one color and for the dark/light balance.
+    private int getBlockAndBalancePenalty(long[] grid) {
         int result = 0;
-        for (int y = 0; y < size; y++) {
-            boolean runColor = false;
-            int runX = 0;
-            int[] runHistory = new int[7];
-            for (int x = 0; x < size; x++) {
-                if (modules[y][x] == runColor) {
-                    runX++;
-                    if (runX == 5) result += 3;
-                    else if (runX > 5) result++;
-                } else {
-                    finderPenaltyAddHistory(runX, runHistory);
-                    if (!runColor) result += finderPenaltyCountPatterns(runHistory) * 40;
-                    runColor = modules[y][x];
-                    runX = 1;
-                }
-            }
-            result += finderPenaltyTerminateAndCount(runColor, runX, runHistory) * 40;
-        }
-        for (int x = 0; x < size; x++) {
-            boolean runColor = false;
-            int runY = 0;
-            int[] runHistory = new int[7];
-            for (int y = 0; y < size; y++) {
-                if (modules[y][x] == runColor) {
-                    runY++;
-                    if (runY == 5) result += 3;
-                    else if (runY > 5) result++;
-                } else {
-                    finderPenaltyAddHistory(runY, runHistory);
-                    if (!runColor) result += finderPenaltyCountPatterns(runHistory) * 40;
-                    runColor = modules[y][x];
-                    runY = 1;
-                }
-            }
-            result += finderPenaltyTerminateAndCount(runColor, runY, runHistory) * 40;
-        }
         for (int y = 0; y < size - 1; y++) {
-            for (int x = 0; x < size - 1; x++) {
-                boolean color = modules[y][x];
-                if (color == modules[y][x + 1] && color == modules[y + 1][x] && color == modules[y + 1][x + 1])
-                    result += 3;
+            int a = y * rowWords, b = a + rowWords;
+            for (int w = 0; w < rowWords; w++) {
+                long top = grid[a + w], bottom = grid[b + w];
+                long topNext = top >>> 1 | (w + 1 < rowWords ? grid[a + w + 1] << 63 : 0);
+                long bottomNext = bottom >>> 1 | (w + 1 < rowWords ? grid[b + w + 1] << 63 : 0);
+                long same = ~(top ^ topNext) & ~(top ^ bottom) & ~(bottom ^ bottomNext) & wordMask(w, size - 1);
+                result += Long.bitCount(same) * 3;
             }
         }
         int dark = 0;
-        for (boolean[] row : modules)
-            for (boolean c : row) if (c) dark++;
+        for (long word : grid) dark += Long.bitCount(word);
         int total = size * size;
         int k = (Math.abs(dark * 20 - total * 10) + total - 1) / total - 1;
         result += Math.max(0, k) * 10;
         return result;
     }
 
+    // Run and finder-like pattern penalties along one line of packed modules, 64 modules at a time.
+    // Modules past either end read as light, which is how the finder rule treats the edge.
+    private int getLinePenalty(long[] bits, int base, long[] line) {
+        System.arraycopy(bits, base, line, 1, rowWords);  // line[0] and line[rowWords + 1] stay 0
+        int runs = 0, runStarts = 0, finders = 0;
+        for (int w = 0; w < rowWords; w++) {
+            long m4 = shifted(line, w, -4), m3 = shifted(line, w, -3), m2 = shifted(line, w, -2), m1 = shifted(line, w, -1);
+            long c = line[w + 1];
+            long p1 = shifted(line, w, 1), p2 = shifted(line, w, 2), p3 = shifted(line, w, 3), p4 = shifted(line, w, 4);
+            long p5 = shifted(line, w, 5), p6 = shifted(line, w, 6), p7 = shifted(line, w, 7);
+            long p8 = shifted(line, w, 8), p9 = shifted(line, w, 9), p10 = shifted(line, w, 10);
+
+            // 5 equal modules from x; a run of length L >= 5 has L - 4 of these and scores L - 2
+            long e0 = ~(c ^ p1), e1 = ~(p1 ^ p2), e2 = ~(p2 ^ p3), e3 = ~(p3 ^ p4);
+            long run5 = e0 & e1 & e2 & e3 & wordMask(w, size - 4);
+            long prevRun5 = ~(m1 ^ c) & e0 & e1 & e2 & (w == 0 ? ~1L : -1L);
+            runs += Long.bitCount(run5);
+            runStarts += Long.bitCount(run5 & ~prevRun5);
+
+            // dark-light-dark-dark-dark-light-dark of width 1, bounded by light, with 4 light on one side
+            long core = ~m1 & c & ~p1 & p2 & p3 & p4 & ~p5 & p6 & ~p7 & wordMask(w, size - 6);
+            finders += Long.bitCount(core & ~p8 & ~p9 & ~p10) + Long.bitCount(core & ~m2 & ~m3 & ~m4);
+
+            // wider patterns need a dark run of at least 6; those are rare, so check them one by one
+            long longDark = ~m1 & c & p1 & p2 & p3 & p4 & p5 & wordMask(w, size - 5);
+            while (longDark != 0) {
+                finders += countWideFinderPatterns(line, (w << 6) + Long.numberOfTrailingZeros(longDark));
+                longDark &= longDark - 1;
+            }
+        }
+        return runs + runStarts * 2 + finders * 40;
+    }
+
+    // Word w of the padded line, moved so that bit j is module (w * 64 + j + k); 0 < |k| < 64.
+    private static long shifted(long[] line, int w, int k) {
+        return k > 0 ? line[w + 1] >>> k | line[w + 2] << (64 - k)
+                : line[w + 1] << -k | line[w] >>> (64 + k);
+    }
+
+    // Finder-like patterns of width n >= 2 whose 3n-wide centre is the dark run starting at x.
+    private int countWideFinderPatterns(long[] line, int x) {
+        int len = runLength(line, x, 1, true);
+        if (len % 3 != 0) return 0;
+        int n = len / 3;
+        if (runLength(line, x - 1, -1, false) != n || runLength(line, x - 1 - n, -1, true) != n) return 0;
+        int end = x + len;
+        if (runLength(line, end, 1, false) != n || runLength(line, end + n, 1, true) != n) return 0;
+        int before = runLength(line, x - 1 - 2 * n, -1, false);
+        int after = runLength(line, end + 2 * n, 1, false);
+        return (after >= n * 4 && before >= n ? 1 : 0) + (before >= n * 4 && after >= n ? 1 : 0);
+    }
+
+    // Modules of one color from x stepping by step; a light run reaching the edge is unbounded.
+    private int runLength(long[] line, int x, int step, boolean dark) {
+        int i = x;
+        for (; 0 <= i && i < size; i += step) {
+            if ((line[(i >>> 6) + 1] >>> i & 1) != (dark ? 1 : 0)) return Math.abs(i - x);
+        }
+        return dark ? Math.abs(i - x) : Integer.MAX_VALUE / 8;
+    }
+
+    // Bits of word w that are columns below limit.
+    private static long wordMask(int w, int limit) {
+        int n = limit - (w << 6);
+        return n >= 64 ? -1L : n <= 0 ? 0 : (1L << n) - 1;
+    }
+
+    // Transpose the size x size matrix in src into dst (same layout), 64x64 blocks at a time.
+    private void transpose(long[] src, long[] dst) {
+        long[] block = new long[64];
+        for (int bi = 0; bi < rowWords; bi++) {
+            for (int bj = 0; bj < rowWords; bj++) {
+                for (int k = 0; k < 64; k++) {
+                    int y = (bi << 6) + k;
+                    block[k] = y < size ? src[y * rowWords + bj] : 0;
+                }
+                transpose64(block);
+                for (int k = 0; k < 64; k++) {
+                    int y = (bj << 6) + k;
+                    if (y < size) dst[y * rowWords + bi] = block[k];
+                }
+            }
+        }
+    }
+
+    // In-place transpose of a 64x64 bit matrix, bit j of a[i] being element (i, j).
+    private static void transpose64(long[] a) {
+        long m = 0x00000000FFFFFFFFL;
+        for (int j = 32; j != 0; j >>>= 1, m ^= m << j) {
+            for (int k = 0; k < 64; k = ((k | j) + 1) & ~j) {
+                long t = (a[k] >>> j ^ a[k | j]) & m;
+                a[k] ^= t << j;
+                a[k | j] ^= t;
+            }
+        }
+    }
+
     private int[] getAlignmentPatternPositions() {
         if (version == 1) return new int[]{};
         int numAlign = version / 7 + 2;
@@ -391,27 +578,39 @@ public final class QrCode {
         return z & 0xFF;
     }
 
-    private int finderPenaltyCountPatterns(int[] runHistory) {
-        int n = runHistory[1];
-        boolean core = n > 0 && runHistory[2] == n && runHistory[3] == n * 3 && runHistory[4] == n && runHistory[5] == n;
-        return (core && runHistory[0] >= n * 4 && runHistory[6] >= n ? 1 : 0)
-                + (core && runHistory[6] >= n * 4 && runHistory[0] >= n ? 1 : 0);
-    }
-
-    private int finderPenaltyTerminateAndCount(boolean currentRunColor, int currentRunLength, int[] runHistory) {
-        if (currentRunColor) {
-            finderPenaltyAddHistory(currentRunLength, runHistory);
-            currentRunLength = 0;
+    // Automatic mask selection scores the eight masks concurrently from this version up when there is
+    // more than one CPU; below it the whole search is shorter than handing work to the pool.
+    // -Dqrcodegen.concurrentMasks=true|false forces either way.
+    private static final int CONCURRENT_MASKS_MIN_VERSION = 10;
+    // Lines scored between checks whether a mask can still win; -Dqrcodegen.maskSearch=exhaustive
+    // scores every mask in full instead.
+    private static final int PENALTY_BAND_LINES = 16;
+
+    // Mask patterns repeat every 12 rows; MASK_PATTERNS[m] holds those rows for the widest symbol.
+    private static final int MASK_PERIOD = 12;
+    private static final int MASK_ROW_WORDS = (MAX_VERSION * 4 + 17 + 63) >>> 6;
+    private static final long[][] MASK_PATTERNS = new long[8][MASK_PERIOD * MASK_ROW_WORDS];
+
+    static {
+        for (int msk = 0; msk < 8; msk++) {
+            for (int y = 0; y < MASK_PERIOD; y++) {
+                for (int x = 0; x < MASK_ROW_WORDS * 64; x++) {
+                    boolean invert;
+                    switch (msk) {
+                        case 0: invert = (x + y) % 2 == 0; break;
+                        case 1: invert = y % 2 == 0; break;
+                        case 2: invert = x % 3 == 0; break;
+                        case 3: invert = (x + y) % 3 == 0; break;
+                        case 4: invert = (x / 3 + y / 2) % 2 == 0; break;
+                        case 5: invert = x * y % 2 + x * y % 3 == 0; break;
+                        case 6: invert = (x * y % 2 + x * y % 3) % 2 == 0; break;
+                        case 7: invert = ((x + y) % 2 + x * y % 3) % 2 == 0; break;
+                        default: throw new AssertionError();
+                    }
+                    if (invert) MASK_PATTERNS[msk][y * MASK_ROW_WORDS + (x >>> 6)] |= 1L << x;
+                }
+            }
         }
-        currentRunLength += size;
-        finderPenaltyAddHistory(currentRunLength, runHistory);
-        return finderPenaltyCountPatterns(runHistory);
-    }
-
-    private void finderPenaltyAddHistory(int currentRunLength, int[] runHistory) {
-        if (runHistory[0] == 0) currentRunLength += size;
-        System.arraycopy(runHistory, 0, runHistory, 1, runHistory.length - 1);
-        runHistory[0] = currentRunLength;
     }
 
     private static final byte[][] ECC_CODEWORDS_PER_BLOCK = {
@@ -0,0 +1,71 @@
+package ias.dekstop;
+
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CounterHmacTest {
+
+    private static final byte[] SEED_SHA1 = "12345678901234567890".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEED_SHA256 = "12345678901234567890123456789012".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEED_SHA512 = ("1234567890123456789012345678901234567890"
+            + "123456789012345678901234").getBytes(StandardCharsets.US_ASCII);
+
+    // RFC 6238 Appendix B: time in seconds, then the 8-digit codes for SHA-1, SHA-256, SHA-512
+    private static final long[][] VECTORS = {
+        {59L, 94287082, 46119246, 90693936},
+        {1111111109L, 7081804, 68084774, 25091201},
+        {1111111111L, 14050471, 67062674, 99943326},
+        {1234567890L, 89005924, 91819424, 93441116},
+        {2000000000L, 69279037, 90698825, 38618901},
+        {20000000000L, 65353130, 77737706, 47863826},
+    };
+
+    private static int code(TOTP.Algorithm algorithm, byte[] key, long counter) {
+        return CounterHmac.create(algorithm, key).code(counter, new TotpKey.Scratch());
+    }
+
+    @Test
+    public void matchesRfc6238Vectors() {
+        for (long[] v : VECTORS) {
+            long counter = v[0] / TOTP.TIME_STEP_SECONDS;
+            // the 6-digit code is the 8-digit one mod 10^6
+            assertEquals(v[1] % TOTP.CODE_MODULUS, code(TOTP.Algorithm.SHA1, SEED_SHA1, counter));
+            assertEquals(v[2] % TOTP.CODE_MODULUS, code(TOTP.Algorithm.SHA256, SEED_SHA256, counter));
+            assertEquals(v[3] % TOTP.CODE_MODULUS, code(TOTP.Algorithm.SHA512, SEED_SHA512, counter));
+        }
+    }
+
+    @Test
+    public void matchesJcaMacForRandomKeysAndCounters() throws Exception {
+        Random random = new Random(6238);
+        String[] names = {"HmacSHA1", "HmacSHA256", "HmacSHA512"};
+        for (TOTP.Algorithm algorithm : TOTP.Algorithm.values()) {
+            Mac mac = Mac.getInstance(names[algorithm.ordinal()]);
+            for (int i = 0; i < 500; i++) {
+                // up to 200 bytes, so keys longer than the 64- or 128-byte block are hashed first
+                byte[] key = new byte[1 + random.nextInt(200)];
+                random.nextBytes(key);
+                long counter = i < 100 ? i : random.nextLong();
+                mac.init(new SecretKeySpec(key, names[algorithm.ordinal()]));
+                byte[] h = mac.doFinal(ByteBuffer.allocate(8).putLong(counter).array());
+                assertEquals(algorithm + " key length " + key.length + " counter " + counter,
+                        truncate(h), code(algorithm, key, counter));
+            }
+        }
+    }
+
+    /** RFC 4226 dynamic truncation to six digits. */
+    private static int truncate(byte[] h) {
+        int offset = h[h.length - 1] & 0x0F;
+        int binary = ((h[offset] & 0x7F) << 24) | ((h[offset + 1] & 0xFF) << 16)
+                | ((h[offset + 2] & 0xFF) << 8) | (h[offset + 3] & 0xFF);
+        return binary % TOTP.CODE_MODULUS;
+    }
+}
@@ -0,0 +1,56 @@
+package ias.dekstop;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class EmailBloomFilterTest {
+
+    private static final String SECRET = "JBSWY3DPEHPK3PXP";
+
+    @BeforeClass
+    public static void isolate() throws IOException {
+        // TwoFactorStore fixes its file when the class initializes
+        System.setProperty("user.home", Files.createTempDirectory("2fa-filter").toString());
+        System.setProperty("ias.2fa.watch", "false");
+        System.setProperty("ias.2fa.writeBehind", "false");
+    }
+
+    @Test
+    public void stampChangesWhenStoreIsWritten() throws IOException {
+        Path file = Files.createTempDirectory("2fa-stamp").resolve("store");
+        TextSecretStore store = new TextSecretStore(file);
+        store.put("alice@example.com", SECRET, 0);
+        EmailBloomFilter filter = EmailBloomFilter.build(file.resolveSibling("store.bloom"), store,
+                EmailBloomFilter.StoreStamp.of(file, 0));
+        assertTrue(filter.describes(EmailBloomFilter.StoreStamp.of(file, 0)));
+        assertFalse(filter.describes(EmailBloomFilter.StoreStamp.of(file, 1)));
+        store.put("bob@example.com", SECRET, 0);
+        assertFalse(filter.describes(EmailBloomFilter.StoreStamp.of(file, 0)));
+    }
+
+    @Test
+    public void accountAddedBehindTheFilterIsStillEnabled() throws IOException {
+        Path file = TwoFactorStore.storeFile();
+        TextSecretStore store = new TextSecretStore(file);
+        store.put("alice@example.com", SECRET, 0);
+        EmailBloomFilter.build(TwoFactorStore.filterFile(), store, EmailBloomFilter.StoreStamp.of(file, 0));
+
+        // the filter answers for an untouched store without loading it
+        assertFalse(TwoFactorStore.isEnabledForEmail("nobody@example.com"));
+        assertEquals(1, TwoFactorStoreStats.INSTANCE.getFilterRejectCount());
+        assertEquals(-1, TwoFactorStore.loadedSize());
+
+        // another process enrolls bob without touching the filter
+        Files.writeString(file, TextSecretStore.formatLine("bob@example.com", SECRET, 0) + "\n",
+                StandardOpenOption.APPEND);
+        assertTrue(TwoFactorStore.isEnabledForEmail("bob@example.com"));
+        assertEquals(2, TwoFactorStore.loadedSize());
+    }
+}
@@ -0,0 +1,70 @@
+package ias.dekstop;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.*;
+
+public class EncryptedSecretStoreTest {
+
+    private static final String SECRET = "JBSWY3DPEHPK3PXP";
+
+    private static EncryptedSecretStore open(Path file) throws IOException {
+        return new EncryptedSecretStore(file, false, TwoFactorJournal.Durability.BATCH);
+    }
+
+    @Test
+    public void driftEditedOnDiskIsNotTrusted() throws IOException {
+        Path file = Files.createTempDirectory("2fa-sealed").resolve("store");
+        open(file).put("alice@example.com", SECRET, 2);
+        assertEquals(2, open(file).getDrift("alice@example.com"));
+
+        Files.writeString(file, Files.readString(file).replace("|2\n", "|9\n"));
+        EncryptedSecretStore tampered = open(file);
+        assertEquals(0, tampered.getDrift("alice@example.com"));
+        assertNull(tampered.getSecret("alice@example.com"));
+    }
+
+    @Test
+    public void onlySealedRemovalsRemoveAnAccount() throws IOException {
+        Path file = Files.createTempDirectory("2fa-sealed").resolve("store");
+        EncryptedSecretStore store = open(file);
+        store.put("alice@example.com", SECRET, 0);
+        store.put("bob@example.com", SECRET, 0);
+        store.remove("bob@example.com");
+
+        String alice = EncryptedSecretStore.keys(file).index("alice@example.com");
+        Files.writeString(file, Files.readString(file) + alice + "|\n");
+        EncryptedSecretStore reopened = open(file);
+        assertEquals(SECRET, reopened.getSecret("alice@example.com"));
+        assertFalse(reopened.contains("bob@example.com"));
+        assertEquals(1, reopened.size());
+
+        // a forged tag is just an unreadable record: still enrolled, no code accepted
+        Files.writeString(file, Files.readString(file) + alice + "|-forged\n");
+        reopened = open(file);
+        assertTrue(reopened.contains("alice@example.com"));
+        assertNull(reopened.getSecret("alice@example.com"));
+    }
+
+    @Test
+    public void keyFileIsWrittenWholeAndPrivate() throws IOException {
+        // without a passphrase the master key comes from the key file
+        Path file = Files.createTempDirectory("2fa-key").resolve("store");
+        open(file).put("alice@example.com", SECRET, 0);
+        Path keyFile = file.resolveSibling("store.key");
+        assertEquals(32, Files.size(keyFile));
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(keyFile)));
+        try (var dir = Files.list(file.getParent())) {
+            assertTrue(dir.noneMatch(p -> p.toString().endsWith(".tmp")));
+        }
+
+        Path truncated = Files.createTempDirectory("2fa-key").resolve("store");
+        Files.write(truncated.resolveSibling("store.key"), new byte[0]);
+        assertThrows(IOException.class, () -> open(truncated));
+    }
+}
@@ -0,0 +1,42 @@
+package ias.dekstop;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class MappedSecretStoreTest {
+
+    private static final String SECRET = "JBSWY3DPEHPK3PXP";
+
+    @Test
+    public void everyDurabilityKeepsPutsAndRemovesAcrossRebuilds() throws IOException {
+        long errors = TwoFactorStoreStats.INSTANCE.getErrorCount();
+        for (TwoFactorJournal.Durability durability : TwoFactorJournal.Durability.values()) {
+            Path file = Files.createTempDirectory("2fa-mapped").resolve("store.bin");
+            MappedSecretStore store = new MappedSecretStore(file, durability);
+            // past half of the initial 1024 slots, so puts run into a rebuild
+            int n = 1500;
+            for (int i = 0; i < n; i++) store.put("user" + i + "@example.com", SECRET, i % 3 - 1);
+            for (int i = 0; i < n; i += 2) store.remove("user" + i + "@example.com");
+            store.close();
+            // a failed force is only counted, not thrown
+            assertEquals(TwoFactorStoreStats.INSTANCE.getLastError(), errors, TwoFactorStoreStats.INSTANCE.getErrorCount());
+
+            MappedSecretStore reopened = new MappedSecretStore(file, durability);
+            assertEquals(durability.toString(), n / 2, reopened.size());
+            for (int i = 0; i < n; i++) {
+                String email = "user" + i + "@example.com";
+                assertEquals(email, i % 2 != 0, reopened.contains(email));
+                if (i % 2 != 0) {
+                    assertEquals(SECRET, reopened.getSecret(email));
+                    assertEquals(i % 3 - 1, reopened.getDrift(email));
+                }
+            }
+            reopened.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ias.dekstop;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class StoreFileLockTest {
+
+    private static final String SECRET = "JBSWY3DPEHPK3PXP";
+
+    /**
+     * Hold the lock the way an import does: copy the store, add an account to
+     * the copy and swap it in, while {@code write} tries to change the live store.
+     */
+    private static void importAround(Path file, Runnable write, ImportStep step) throws Exception {
+        StoreFileLock lock = StoreFileLock.of(file);
+        lock.lock();
+        Thread writer;
+        try {
+            writer = new Thread(write);
+            writer.start();
+            writer.join(200);
+            assertTrue("the write waits for the import", writer.isAlive());
+            Path tmp = file.resolveSibling(file.getFileName() + ".import");
+            Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+            step.addTo(tmp);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            lock.unlock();
+        }
+        writer.join();
+    }
+
+    private interface ImportStep {
+        void addTo(Path copy) throws IOException;
+    }
+
+    @Test
+    public void binaryWriteDuringAnImportLandsInTheImportedFile() throws Exception {
+        Path file = Files.createTempDirectory("2fa-lock").resolve("store.bin");
+        MappedSecretStore store = new MappedSecretStore(file, TwoFactorJournal.Durability.BATCH);
+        store.put("alice@example.com", SECRET, 0);
+        store.put("bob@example.com", SECRET, 0);
+
+        importAround(file, () -> {
+            store.put("carol@example.com", SECRET, 1);
+            store.remove("bob@example.com");
+        }, copy -> {
+            MappedSecretStore imported = new MappedSecretStore(copy);
+            imported.put("dave@example.com", SECRET, 0);
+            imported.close();
+        });
+        store.close();
+
+        MappedSecretStore reopened = new MappedSecretStore(file, TwoFactorJournal.Durability.BATCH);
+        assertTrue(reopened.contains("alice@example.com"));
+        assertFalse(reopened.contains("bob@example.com"));
+        assertEquals(1, reopened.getDrift("carol@example.com"));
+        assertTrue(reopened.contains("dave@example.com"));
+        reopened.close();
+    }
+
+    @Test
+    public void journalAppendDuringAnImportLandsInTheImportedFile() throws Exception {
+        Path file = Files.createTempDirectory("2fa-lock").resolve("store");
+        TextSecretStore store = new TextSecretStore(file, false, TwoFactorJournal.Durability.BATCH);
+        store.put("alice@example.com", SECRET, 0);
+
+        importAround(file, () -> store.put("carol@example.com", SECRET, 1), copy ->
+                Files.writeString(copy, TextSecretStore.formatLine("dave@example.com", SECRET, 0) + "\n",
+                        StandardOpenOption.APPEND));
+
+        TextSecretStore reopened = new TextSecretStore(file);
+        assertTrue(reopened.contains("alice@example.com"));
+        assertEquals(1, reopened.getDrift("carol@example.com"));
+        assertTrue(reopened.contains("dave@example.com"));
+    }
+
+    @Test
+    public void lockIsReentrantWithinAThread() throws IOException {
+        StoreFileLock lock = StoreFileLock.of(Files.createTempDirectory("2fa-lock").resolve("store"));
+        lock.lock();
+        lock.lock();
+        lock.unlock();
+        lock.unlock();
+        lock.lock();
+        lock.unlock();
+    }
+}
@@ -0,0 +1,36 @@
+package ias.dekstop;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class TextSecretStoreTest {
+
+    private static final String SECRET = "JBSWY3DPEHPK3PXP";
+    private static final long STEP = 56_000_000L;
+
+    @Test
+    public void verifiesFromTheVaultUntilItIsWiped() throws IOException {
+        Path file = Files.createTempDirectory("2fa-text").resolve("store");
+        TextSecretStore store = new TextSecretStore(file);
+        store.put("alice@example.com", SECRET, 0);
+        int code = TotpKey.fromBase32(SECRET).generate(STEP + 1, new TotpKey.Scratch());
+        assertEquals(1, store.matchOffset("alice@example.com", code, STEP, 0));
+
+        store.putDrift("alice@example.com", 1);
+        assertEquals(1, store.getDrift("alice@example.com"));
+        assertEquals(1, store.matchOffset("alice@example.com", code, STEP, 1));
+        assertEquals(SECRET, store.getSecret("alice@example.com"));
+        assertEquals(1, new TextSecretStore(file).getDrift("alice@example.com"));
+
+        // what the shutdown hook does; the vault is per process and each test class gets its own JVM
+        SecretVault.INSTANCE.close();
+        assertThrows(IllegalStateException.class, () -> store.getSecret("alice@example.com"));
+        assertThrows(IllegalStateException.class, () -> store.matchOffset("alice@example.com", code, STEP, 1));
+        assertNull(store.getSecret("nobody@example.com"));
+    }
+}
@@ -0,0 +1,83 @@
+package ias.dekstop;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class TotpBatchTest {
+
+    private static final String BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+    private static final long START_MILLIS = 1_700_000_000_000L;
+
+    private final String[] secrets;
+    private final String[] codes;
+    private final long[] timestamps;
+    private final boolean[] valid;
+
+    public TotpBatchTest() {
+        // past the stream's 64K chunk twice, so both chunk joins and a partial last chunk are covered
+        int n = 2 * 65536 + 65;
+        secrets = new String[n];
+        codes = new String[n];
+        timestamps = new long[n];
+        valid = new boolean[n];
+        // seeded, so the rare wrong code that happens to equal a code in the window never varies by run
+        Random random = new Random(4);
+        String[] accounts = new String[16];
+        for (int a = 0; a < accounts.length; a++) {
+            StringBuilder secret = new StringBuilder();
+            for (int j = 0; j < 32; j++) secret.append(BASE32.charAt(random.nextInt(32)));
+            accounts[a] = secret.toString();
+        }
+        TotpKey.Scratch scratch = new TotpKey.Scratch();
+        for (int i = 0; i < n; i++) {
+            // runs of the same account, as replayed logs have
+            String secret = accounts[(i / 7) % accounts.length];
+            long millis = START_MILLIS + i * 1000L;
+            long counter = millis / 1000 / TOTP.TIME_STEP_SECONDS;
+            int offset = random.nextInt(5) - 2;   // ±1 passes, ±2 does not
+            secrets[i] = random.nextInt(50) == 0 ? null : secret;
+            codes[i] = random.nextInt(50) == 0 ? "12a456"
+                    : TOTP.formatCode(TotpKey.fromBase32(secret).generate(counter + offset, scratch));
+            timestamps[i] = millis;
+            valid[i] = secrets[i] != null && !codes[i].equals("12a456") && Math.abs(offset) <= TOTP.CLOCK_SKEW_STEPS;
+        }
+    }
+
+    private void assertBits(int n, long[] bits) {
+        assertEquals((n + 63) >>> 6, bits.length);
+        for (int i = 0; i < n; i++) {
+            assertEquals("request " + i + " of " + n, valid[i], (bits[i >>> 6] >>> i & 1) != 0);
+        }
+    }
+
+    @Test
+    public void arrayFormAtLeafAndWordBoundaries() {
+        for (int n : new int[] {0, 1, 63, 64, 65, 1023, 1024, 1025, 2047, 2049, 4096 + 1}) {
+            String[] s = Arrays.copyOf(secrets, n);
+            String[] c = Arrays.copyOf(codes, n);
+            long[] t = Arrays.copyOf(timestamps, n);
+            assertBits(n, TOTP.verifyBatch(s, c, t));
+        }
+        assertBits(secrets.length, TOTP.verifyBatch(secrets, codes, timestamps));
+    }
+
+    @Test
+    public void streamFormAtChunkBoundaries() {
+        for (int n : new int[] {0, 1, 65535, 65536, 65537, 2 * 65536, secrets.length}) {
+            long[] bits = TOTP.verifyBatch(IntStream.range(0, n)
+                    .mapToObj(i -> new TOTP.BatchRequest(secrets[i], codes[i], timestamps[i])));
+            assertBits(n, bits);
+        }
+    }
+
+    @Test
+    public void mismatchedLengthsAreRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> TOTP.verifyBatch(new String[2], new String[1], new long[2]));
+    }
+}
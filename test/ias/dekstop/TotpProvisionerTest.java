@@ -0,0 +1,42 @@
+package ias.dekstop;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TotpProvisionerTest {
+
+    private static String permissions(Path path) throws IOException {
+        return PosixFilePermissions.toString(Files.getPosixFilePermissions(path));
+    }
+
+    @Test
+    public void outputIsOwnerOnly() throws IOException {
+        Path out = Files.createTempDirectory("2fa-provision").resolve("out");
+        // a manifest left world-readable by an earlier run is tightened before it is rewritten
+        Files.createDirectories(out);
+        Files.setPosixFilePermissions(out, PosixFilePermissions.fromString("rwxr-xr-x"));
+        Files.writeString(out.resolve("manifest.csv"), "old\n");
+        Files.setPosixFilePermissions(out.resolve("manifest.csv"), PosixFilePermissions.fromString("rw-r--r--"));
+
+        long n = new TotpProvisioner(out.toFile(), "IAS")
+                .provision(List.of("alice@example.com", "bob@example.com").iterator());
+        assertEquals(2, n);
+        assertEquals("rwx------", permissions(out));
+        assertEquals("rwx------", permissions(out.resolve("qr")));
+        assertEquals("rw-------", permissions(out.resolve("manifest.csv")));
+        assertEquals(3, Files.readAllLines(out.resolve("manifest.csv")).size());
+        for (File png : out.resolve("qr").toFile().listFiles()) {
+            assertEquals("rw-------", permissions(png.toPath()));
+            assertTrue(png.length() > 0);
+        }
+        assertEquals(2, out.resolve("qr").toFile().listFiles().length);
+    }
+}
@@ -0,0 +1,42 @@
+package ias.dekstop;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TotpResyncTest {
+
+    private static final String SECRET = "JBSWY3DPEHPK3PXP";
+    private static final long NOW_STEP = 56_000_000L;
+    private static final long NOW_MILLIS = NOW_STEP * TOTP.TIME_STEP_SECONDS * 1000 + 12_345;
+
+    private static String codeAt(long step) {
+        return TOTP.formatCode(TotpKey.fromBase32(SECRET).generate(step, new TotpKey.Scratch()));
+    }
+
+    /** Resync from the two codes a device {@code steps} ahead shows now and on the next step. */
+    private static Long resync(int steps) {
+        return TOTP.resync(SECRET, codeAt(NOW_STEP + steps - 1), codeAt(NOW_STEP + steps), NOW_MILLIS);
+    }
+
+    @Test
+    public void findsOffsetsUpToADayEitherWay() {
+        for (int steps : new int[] {-TOTP.RESYNC_WINDOW_STEPS, -TOTP.RESYNC_WINDOW_STEPS + 1, -1000, -1, 0, 1,
+                                    257, 1000, TOTP.RESYNC_WINDOW_STEPS - 1, TOTP.RESYNC_WINDOW_STEPS}) {
+            assertEquals("steps " + steps, (Long) (steps * TOTP.TIME_STEP_SECONDS * 1000L), resync(steps));
+        }
+    }
+
+    @Test
+    public void givesUpPastADay() {
+        assertNull(resync(TOTP.RESYNC_WINDOW_STEPS + 2));
+        assertNull(resync(-TOTP.RESYNC_WINDOW_STEPS - 2));
+    }
+
+    @Test
+    public void rejectsCodesOutOfOrderOrMalformed() {
+        assertNull(TOTP.resync(SECRET, codeAt(NOW_STEP + 1), codeAt(NOW_STEP), NOW_MILLIS));
+        assertNull(TOTP.resync(SECRET, "12345", codeAt(NOW_STEP), NOW_MILLIS));
+        assertNull(TOTP.resync("not base32!", codeAt(NOW_STEP - 1), codeAt(NOW_STEP), NOW_MILLIS));
+    }
+}
@@ -0,0 +1,45 @@
+package ias.dekstop;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TotpWindowCacheTest {
+
+    private static final String SECRET = "JBSWY3DPEHPK3PXP";
+    private static final long STEP = 56_000_000L;
+
+    private static int codeAt(int offset) {
+        return TotpKey.fromBase32(SECRET).generate(STEP + offset, new TotpKey.Scratch());
+    }
+
+    private static int match(int offset, int drift) {
+        return TotpWindowCache.INSTANCE.match("drift@example.com", SECRET, codeAt(offset), STEP, drift);
+    }
+
+    @Test
+    public void acceptsOneStepAroundDriftAndZero() {
+        for (int offset : new int[] {4, 5, 6, -1, 0, 1}) {
+            assertEquals(offset, match(offset, 5));
+        }
+    }
+
+    @Test
+    public void rejectsStepsBetweenZeroAndDrift() {
+        for (int offset = 2; offset <= 3; offset++) {
+            assertEquals(TOTP.NO_MATCH, match(offset, 5));
+        }
+        assertEquals(TOTP.NO_MATCH, match(-4, -7));
+        assertEquals(TOTP.NO_MATCH, match(7, 5));
+        assertEquals(TOTP.NO_MATCH, match(-2, 5));
+    }
+
+    @Test
+    public void overlappingWindowsCheckEachStepOnce() {
+        for (int offset = -1; offset <= 3; offset++) {
+            assertEquals(offset, match(offset, 2));
+        }
+        assertEquals(TOTP.NO_MATCH, match(4, 2));
+        assertEquals(TOTP.NO_MATCH, match(-2, 2));
+    }
+}
@@ -0,0 +1,48 @@
+package ias.dekstop;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TwoFactorJournalTest {
+
+    private static long writers() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().equals("2fa-store-writer") && t.isAlive())
+                .count();
+    }
+
+    @Test
+    public void closeWritesTheQueueAndStopsTheWriter() throws IOException {
+        long before = writers();
+        Path file = Files.createTempDirectory("2fa-journal").resolve("store");
+        TwoFactorJournal journal = new TwoFactorJournal(file, true, TwoFactorJournal.Durability.SHUTDOWN);
+        assertEquals(before + 1, writers());
+        journal.append("alice@example.com", "alice@example.com|A");
+        journal.append("bob@example.com", "bob@example.com|B");
+        journal.close();
+        assertEquals(before, writers());
+        assertEquals(List.of("alice@example.com|A", "bob@example.com|B"), Files.readAllLines(file));
+
+        // with the writer gone, appends go straight to the file
+        journal.append("carol@example.com", "carol@example.com|C");
+        assertEquals(3, Files.readAllLines(file).size());
+        journal.close();
+    }
+
+    @Test
+    public void closingTheStoreClosesItsJournal() throws IOException {
+        long before = writers();
+        Path file = Files.createTempDirectory("2fa-journal").resolve("store");
+        TextSecretStore store = new TextSecretStore(file, true, TwoFactorJournal.Durability.BATCH);
+        store.put("alice@example.com", "JBSWY3DPEHPK3PXP", 0);
+        store.close();
+        assertEquals(before, writers());
+        assertEquals("JBSWY3DPEHPK3PXP", new TextSecretStore(file).getSecret("alice@example.com"));
+    }
+}
@@ -0,0 +1,43 @@
+package ias.dekstop;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class TwoFactorStoreTest {
+
+    private static final String SECRET = "JBSWY3DPEHPK3PXP";
+
+    @BeforeClass
+    public static void isolate() throws IOException {
+        // TwoFactorStore fixes its file when the class initializes
+        System.setProperty("user.home", Files.createTempDirectory("2fa-facade").toString());
+        System.setProperty("ias.2fa.watch", "false");
+        System.setProperty("ias.2fa.writeBehind", "false");
+    }
+
+    @AfterClass
+    public static void close() throws IOException {
+        TwoFactorStore.close();
+    }
+
+    private static String codeAt(int offset) {
+        int code = TotpKey.fromBase32(SECRET).generate(TOTP.currentCounter() + offset, new TotpKey.Scratch());
+        return String.format("%06d", code);
+    }
+
+    @Test
+    public void loginsAtDriftPlusOneStopAtTheCap() {
+        TwoFactorStore.saveSecretForEmail("creep@example.com", SECRET);
+        for (int i = 0; i < 2 * TOTP.MAX_DRIFT_STEPS; i++) {
+            int drift = TwoFactorStore.getDriftForEmail("creep@example.com");
+            assertTrue(TwoFactorStore.verifyCodeForEmail("creep@example.com", codeAt(drift + 1)));
+        }
+        assertEquals(TOTP.MAX_DRIFT_STEPS, TwoFactorStore.getDriftForEmail("creep@example.com"));
+    }
+}
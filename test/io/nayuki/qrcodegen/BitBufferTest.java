@@ -0,0 +1,82 @@
+package io.nayuki.qrcodegen;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BitBufferTest {
+
+    /** The bits of {@code bb} read one at a time, packed as the baseline's byte export did. */
+    private static byte[] bytesOf(BitBuffer bb) {
+        byte[] result = new byte[(bb.bitLength() + 7) / 8];
+        for (int i = 0; i < bb.bitLength(); i++)
+            result[i >>> 3] |= bb.getBit(i) << (7 - (i & 7));
+        return result;
+    }
+
+    @Test
+    public void appendBitsCrossesWordBoundaries() {
+        Random random = new Random(25);
+        for (int start = 0; start <= 130; start++) {
+            for (int len = 0; len <= 31; len++) {
+                BitBuffer bb = new BitBuffer();
+                StringBuilder expected = new StringBuilder();
+                for (int i = 0; i < start; i++) {
+                    int bit = random.nextInt(2);
+                    bb.appendBits(bit, 1);
+                    expected.append(bit);
+                }
+                int val = len == 0 ? 0 : random.nextInt() >>> (32 - len);
+                bb.appendBits(val, len);
+                for (int i = len - 1; i >= 0; i--) expected.append(val >>> i & 1);
+                assertEquals(expected.length(), bb.bitLength());
+                for (int i = 0; i < expected.length(); i++)
+                    assertEquals("start " + start + " len " + len + " bit " + i, expected.charAt(i) - '0', bb.getBit(i));
+                assertArrayEquals(bytesOf(bb), bb.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void appendDataAtEveryOffsetMatchesBitByBit() {
+        Random random = new Random(64);
+        for (int head = 0; head <= 130; head++) {
+            for (int tail : new int[] {0, 1, 7, 8, 63, 64, 65, 127, 128, 129, 300}) {
+                BitBuffer a = randomBits(random, head);
+                BitBuffer b = randomBits(random, tail);
+                BitBuffer expected = a.clone();
+                for (int i = 0; i < b.bitLength(); i++) expected.appendBits(b.getBit(i), 1);
+                a.appendData(b);
+                assertEquals(expected.bitLength(), a.bitLength());
+                String what = "head " + head + " tail " + tail;
+                assertArrayEquals(what, bytesOf(expected), bytesOf(a));
+                assertArrayEquals(what, bytesOf(a), a.toByteArray());
+                // bits past the end stay clear, so a later append lands on zeros
+                a.appendBits(0, 1);
+                assertEquals(0, a.getBit(a.bitLength() - 1));
+            }
+        }
+    }
+
+    @Test
+    public void cloneIsIndependent() {
+        BitBuffer a = randomBits(new Random(1), 64);
+        BitBuffer b = a.clone();
+        b.appendBits(0x7FFFFFFF, 31);
+        assertEquals(64, a.bitLength());
+        assertEquals(8, a.toByteArray().length);
+        assertEquals(95, b.bitLength());
+    }
+
+    private static BitBuffer randomBits(Random random, int n) {
+        BitBuffer bb = new BitBuffer();
+        while (n > 0) {
+            int len = Math.min(n, 1 + random.nextInt(31));
+            bb.appendBits(random.nextInt() >>> (32 - len), len);
+            n -= len;
+        }
+        return bb;
+    }
+}
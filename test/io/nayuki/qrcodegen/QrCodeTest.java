@@ -0,0 +1,172 @@
+package io.nayuki.qrcodegen;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class QrCodeTest {
+
+    // every qrcodegen.maskSearch x qrcodegen.concurrentMasks combination; null leaves the default
+    private static final String[][] MODES = {
+        {"exhaustive", "false"}, {null, "false"}, {"exhaustive", "true"}, {null, "true"}, {null, null},
+    };
+
+    @Test
+    public void everyMaskSearchPicksTheBaselineMask() {
+        Random random = new Random(21);
+        for (int version = QrCode.MIN_VERSION; version <= QrCode.MAX_VERSION; version++) {
+            for (QrCode.Ecc ecl : QrCode.Ecc.values()) {
+                byte[] data = new byte[QrCode.getNumDataCodewords(version, ecl)];
+                random.nextBytes(data);
+                checkMaskSearch(version, ecl, data);
+            }
+        }
+    }
+
+    @Test
+    public void tiesGoToTheLowerMask() {
+        // enough constant payloads at small versions tie for the lowest penalty to pin the tie rule
+        for (int version = 1; version <= 3; version++) {
+            for (QrCode.Ecc ecl : QrCode.Ecc.values()) {
+                byte[] data = new byte[QrCode.getNumDataCodewords(version, ecl)];
+                for (int fill = 0; fill < 256; fill++) {
+                    Arrays.fill(data, (byte) fill);
+                    checkMaskSearch(version, ecl, data);
+                }
+            }
+        }
+    }
+
+    private static void checkMaskSearch(int version, QrCode.Ecc ecl, byte[] data) {
+        QrCode[] masked = new QrCode[8];
+        int best = 0;
+        int minPenalty = Integer.MAX_VALUE;
+        for (int msk = 0; msk < 8; msk++) {
+            masked[msk] = new QrCode(version, ecl, data, msk);
+            int penalty = baselinePenalty(masked[msk]);
+            if (penalty < minPenalty) {
+                best = msk;
+                minPenalty = penalty;
+            }
+        }
+        for (String[] mode : MODES) {
+            QrCode qr = withMode(mode, () -> new QrCode(version, ecl, data, -1));
+            String what = "version " + version + " " + ecl + " " + Arrays.toString(mode);
+            assertEquals(what, best, qr.mask);
+            for (int y = 0; y < qr.size; y++) {
+                assertArrayEquals(what + " row " + y, masked[best].getRow(y), qr.getRow(y));
+            }
+        }
+    }
+
+    private static QrCode withMode(String[] mode, Supplier<QrCode> encode) {
+        set("qrcodegen.maskSearch", mode[0]);
+        set("qrcodegen.concurrentMasks", mode[1]);
+        try {
+            return encode.get();
+        } finally {
+            System.clearProperty("qrcodegen.maskSearch");
+            System.clearProperty("qrcodegen.concurrentMasks");
+        }
+    }
+
+    private static void set(String key, String value) {
+        if (value != null) System.setProperty(key, value);
+        else System.clearProperty(key);
+    }
+
+    @Test
+    public void rowsAgreeWithModules() {
+        QrCode qr = QrCode.encodeText("otpauth://totp/IAS:alice@example.com?secret=JBSWY3DPEHPK3PXP", QrCode.Ecc.MEDIUM);
+        long[] row = new long[qr.getRowWords()];
+        for (int y = 0; y < qr.size; y++) {
+            qr.getRow(y, row, 0);
+            for (int x = 0; x < qr.getRowWords() * 64; x++) {
+                assertEquals(qr.getModule(x, y), (row[x >>> 6] >>> x & 1) != 0);
+            }
+        }
+    }
+
+    // ---- the penalty rule as the row-of-booleans implementation scored it
+
+    private static int baselinePenalty(QrCode qr) {
+        int size = qr.size;
+        int result = 0;
+        for (int y = 0; y < size; y++) {
+            boolean runColor = false;
+            int runX = 0;
+            int[] runHistory = new int[7];
+            for (int x = 0; x < size; x++) {
+                if (qr.getModule(x, y) == runColor) {
+                    runX++;
+                    if (runX == 5) result += 3;
+                    else if (runX > 5) result++;
+                } else {
+                    addHistory(size, runX, runHistory);
+                    if (!runColor) result += countPatterns(runHistory) * 40;
+                    runColor = qr.getModule(x, y);
+                    runX = 1;
+                }
+            }
+            result += terminateAndCount(size, runColor, runX, runHistory) * 40;
+        }
+        for (int x = 0; x < size; x++) {
+            boolean runColor = false;
+            int runY = 0;
+            int[] runHistory = new int[7];
+            for (int y = 0; y < size; y++) {
+                if (qr.getModule(x, y) == runColor) {
+                    runY++;
+                    if (runY == 5) result += 3;
+                    else if (runY > 5) result++;
+                } else {
+                    addHistory(size, runY, runHistory);
+                    if (!runColor) result += countPatterns(runHistory) * 40;
+                    runColor = qr.getModule(x, y);
+                    runY = 1;
+                }
+            }
+            result += terminateAndCount(size, runColor, runY, runHistory) * 40;
+        }
+        for (int y = 0; y < size - 1; y++) {
+            for (int x = 0; x < size - 1; x++) {
+                boolean color = qr.getModule(x, y);
+                if (color == qr.getModule(x + 1, y) && color == qr.getModule(x, y + 1) && color == qr.getModule(x + 1, y + 1))
+                    result += 3;
+            }
+        }
+        int dark = 0;
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++) if (qr.getModule(x, y)) dark++;
+        int total = size * size;
+        int k = (Math.abs(dark * 20 - total * 10) + total - 1) / total - 1;
+        return result + Math.max(0, k) * 10;
+    }
+
+    private static int countPatterns(int[] runHistory) {
+        int n = runHistory[1];
+        boolean core = n > 0 && runHistory[2] == n && runHistory[3] == n * 3 && runHistory[4] == n && runHistory[5] == n;
+        return (core && runHistory[0] >= n * 4 && runHistory[6] >= n ? 1 : 0)
+                + (core && runHistory[6] >= n * 4 && runHistory[0] >= n ? 1 : 0);
+    }
+
+    private static int terminateAndCount(int size, boolean currentRunColor, int currentRunLength, int[] runHistory) {
+        if (currentRunColor) {
+            addHistory(size, currentRunLength, runHistory);
+            currentRunLength = 0;
+        }
+        currentRunLength += size;
+        addHistory(size, currentRunLength, runHistory);
+        return countPatterns(runHistory);
+    }
+
+    private static void addHistory(int size, int currentRunLength, int[] runHistory) {
+        if (runHistory[0] == 0) currentRunLength += size;
+        System.arraycopy(runHistory, 0, runHistory, 1, runHistory.length - 1);
+        runHistory[0] = currentRunLength;
+    }
+}